@@ -0,0 +1,92 @@
+package common;
+
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+
+import java.time.Duration;
+
+// One S3 and one SQS client per JVM, each sync and async. Clients are thread-safe and own a
+// connection pool, so building one per call throws away warm connections and costs a TLS
+// handshake every time. The async clients run on a few Netty event-loop threads and keep up
+// to AWS_MAX_CONCURRENCY requests in flight each; the sync ones (control calls, whole-file
+// transfers) up to AWS_MAX_CONNECTIONS.
+public final class AwsClients {
+
+    private static final Region REGION = Region.US_EAST_1;
+    private static final int MAX_CONCURRENCY = Integer.parseInt(
+            System.getenv().getOrDefault("AWS_MAX_CONCURRENCY", "200"));
+    private static final int MAX_CONNECTIONS = Integer.parseInt(
+            System.getenv().getOrDefault("AWS_MAX_CONNECTIONS", "64"));
+
+    private static volatile S3Client s3;
+    private static volatile SqsClient sqs;
+    private static volatile S3AsyncClient s3Async;
+    private static volatile SqsAsyncClient sqsAsync;
+
+    private AwsClients() {
+    }
+
+    public static S3Client s3() {
+        if (s3 == null) {
+            synchronized (AwsClients.class) {
+                if (s3 == null)
+                    s3 = S3Client.builder().region(REGION).httpClientBuilder(syncHttp()).build();
+            }
+        }
+        return s3;
+    }
+
+    public static SqsClient sqs() {
+        if (sqs == null) {
+            synchronized (AwsClients.class) {
+                if (sqs == null)
+                    sqs = SqsClient.builder().region(REGION).httpClientBuilder(syncHttp()).build();
+            }
+        }
+        return sqs;
+    }
+
+    public static S3AsyncClient s3Async() {
+        if (s3Async == null) {
+            synchronized (AwsClients.class) {
+                if (s3Async == null)
+                    s3Async = S3AsyncClient.builder().region(REGION).httpClientBuilder(asyncHttp()).build();
+            }
+        }
+        return s3Async;
+    }
+
+    public static SqsAsyncClient sqsAsync() {
+        if (sqsAsync == null) {
+            synchronized (AwsClients.class) {
+                if (sqsAsync == null)
+                    sqsAsync = SqsAsyncClient.builder().region(REGION).httpClientBuilder(asyncHttp()).build();
+            }
+        }
+        return sqsAsync;
+    }
+
+    private static ApacheHttpClient.Builder syncHttp() {
+        return ApacheHttpClient.builder()
+                .maxConnections(MAX_CONNECTIONS)
+                .connectionTimeToLive(Duration.ofMinutes(5))
+                .socketTimeout(Duration.ofSeconds(30));
+    }
+
+    // Requests beyond maxConcurrency wait for a connection instead of failing at once. Long
+    // polls hold a connection for up to 20 s, so the read timeout must outlast them.
+    private static NettyNioAsyncHttpClient.Builder asyncHttp() {
+        return NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(MAX_CONCURRENCY)
+                .maxPendingConnectionAcquires(MAX_CONCURRENCY * 10)
+                .connectionAcquisitionTimeout(Duration.ofSeconds(60))
+                .readTimeout(Duration.ofSeconds(30))
+                .writeTimeout(Duration.ofSeconds(30))
+                .connectionTimeToLive(Duration.ofMinutes(5));
+    }
+}
@@ -0,0 +1,87 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Object storage for inputs, results and summaries, addressed by bucket and key. Objects are
+ * referred to as s3://bucket/key in messages whichever store holds them.
+ */
+public interface BlobStore {
+
+    final class Stat {
+        public final long size;
+        public final String md5; // hex MD5 of the content, null if the store cannot tell cheaply
+
+        public Stat(long size, String md5) {
+            this.size = size;
+            this.md5 = md5;
+        }
+    }
+
+    void ensureBucket(String bucket);
+
+    void put(String bucket, String key, Path file);
+
+    // Completes once the object is stored; no thread waits on the transfer where the transport allows
+    CompletableFuture<Void> putAsync(String bucket, String key, Path file);
+
+    void put(String bucket, String key, byte[] data, String contentType);
+
+    // Streams exactly `length` bytes from `in`
+    void put(String bucket, String key, InputStream in, long length);
+
+    // null if there is no such object; the caller closes the stream
+    InputStream open(String bucket, String key);
+
+    // -1 if there is no such object
+    long size(String bucket, String key);
+
+    void delete(String bucket, List<String> keys);
+
+    // null if there is no such object
+    default Stat stat(String bucket, String key) {
+        long size = size(bucket, key);
+        return size < 0 ? null : new Stat(size, null);
+    }
+
+    // `length` bytes from offset `from`; null if there is no such object
+    default byte[] readRange(String bucket, String key, long from, int length) {
+        try (InputStream in = open(bucket, key)) {
+            if (in == null)
+                return null;
+            in.skipNBytes(from);
+            return in.readNBytes(length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // null if there is no such object
+    default byte[] read(String bucket, String key) {
+        try (InputStream in = open(bucket, key)) {
+            return in == null ? null : in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // "s3://bucket/key" -> {bucket, key}
+    static String[] splitUrl(String s3Url) {
+        if (s3Url == null || !s3Url.startsWith("s3://"))
+            throw new IllegalArgumentException("Bad S3 URL: " + s3Url);
+        String rest = s3Url.substring("s3://".length());
+        int slash = rest.indexOf('/');
+        if (slash <= 0)
+            throw new IllegalArgumentException("Bad S3 URL: " + s3Url);
+        return new String[] { rest.substring(0, slash), rest.substring(slash + 1) };
+    }
+
+    static String url(String bucket, String key) {
+        return "s3://" + bucket + "/" + key;
+    }
+}
@@ -0,0 +1,39 @@
+package common;
+
+import java.util.List;
+
+/**
+ * Where worker capacity comes from. The manager's autoscaler only talks to this interface,
+ * so the same control loop can drive EC2, local worker threads or a simulated fleet.
+ */
+public interface ComputeProvider {
+
+    String WORKER_ROLE = "Worker";
+
+    final class Instance {
+        public final String id;
+        public final String role; // e.g. "Worker", null if untagged
+        public final boolean running; // false while still pending
+        public final long launchedAtMillis;
+
+        public Instance(String id, String role, boolean running, long launchedAtMillis) {
+            this.id = id;
+            this.role = role;
+            this.running = running;
+            this.launchedAtMillis = launchedAtMillis;
+        }
+    }
+
+    // Every live (pending or running) instance, workers and others. May be cached briefly.
+    List<Instance> list();
+
+    // Starts `count` workers; returns how many were actually requested
+    int launchWorkers(int count);
+
+    void terminate(List<String> ids);
+
+    // Id of the instance this JVM runs on, null when it is not one of this provider's
+    default String selfId() {
+        return null;
+    }
+}
@@ -0,0 +1,301 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Corpus statistics a worker collects while it parses and the manager merges per job:
+ * POS tag and dependency relation histograms, a sentence length histogram, and a
+ * count-min sketch of words with a bounded list of heavy-hitter candidates.
+ * Every part is mergeable by addition, so partial stats can be combined in any order.
+ * All methods are synchronized: parser threads record concurrently.
+ */
+public class CorpusStats {
+
+    public static final int LENGTH_BUCKET = 5; // tokens per length histogram bucket
+    private static final int LENGTH_BUCKETS = 17; // 0-4, 5-9, ..., 80+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1024;
+    private static final int TOP_K = 50;
+    private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+    private long sentences;
+    private long tokens;
+    private final long[] lengths = new long[LENGTH_BUCKETS];
+    private final Map<String, Long> tags = new HashMap<>();
+    private final Map<String, Long> relations = new HashMap<>();
+    private final long[][] sketch = new long[DEPTH][WIDTH];
+    // Words whose sketch estimate is among the largest seen; kept at most 2*TOP_K. byEstimate
+    // holds the same entries ordered by estimate, so the smallest is found without a scan.
+    private final Map<String, Long> candidates = new HashMap<>();
+    private final TreeSet<Candidate> byEstimate = new TreeSet<>();
+
+    // ==== RECORDING ====
+
+    public synchronized void addSentence(int length) {
+        sentences++;
+        tokens += length;
+        lengths[Math.min(LENGTH_BUCKETS - 1, length / LENGTH_BUCKET)]++;
+    }
+
+    public synchronized void addTag(String tag) {
+        tags.merge(tag, 1L, Long::sum);
+    }
+
+    public synchronized void addRelation(String relation) {
+        relations.merge(relation, 1L, Long::sum);
+    }
+
+    public synchronized void addWord(String word) {
+        countWord(word);
+    }
+
+    // A whole sentence under one lock: the parser threads record every sentence they parse.
+    // relations may be null when the sentence's dependencies were not computed.
+    public synchronized void addSentence(List<String> tags, List<String> words, List<String> relations) {
+        addSentence(words.size());
+        for (String tag : tags) {
+            addTag(tag);
+        }
+        for (String word : words) {
+            countWord(word);
+        }
+        if (relations != null) {
+            for (String relation : relations) {
+                addRelation(relation);
+            }
+        }
+    }
+
+    private void countWord(String word) {
+        String w = word.toLowerCase();
+        if (w.isEmpty() || !Character.isLetter(w.charAt(0)))
+            return; // punctuation and numbers are not interesting as "top words"
+        long estimate = Long.MAX_VALUE;
+        for (int d = 0; d < DEPTH; d++) {
+            int col = bucket(w, d);
+            sketch[d][col]++;
+            estimate = Math.min(estimate, sketch[d][col]);
+        }
+        offerCandidate(w, estimate);
+    }
+
+    // ==== MERGING ====
+
+    public void merge(CorpusStats other) {
+        CorpusStats o = other.copy(); // never hold both locks at once
+        synchronized (this) {
+            mergeCopy(o);
+        }
+    }
+
+    private void mergeCopy(CorpusStats o) {
+        sentences += o.sentences;
+        tokens += o.tokens;
+        for (int i = 0; i < LENGTH_BUCKETS; i++) {
+            lengths[i] += o.lengths[i];
+        }
+        o.tags.forEach((k, v) -> tags.merge(k, v, Long::sum));
+        o.relations.forEach((k, v) -> relations.merge(k, v, Long::sum));
+        for (int d = 0; d < DEPTH; d++) {
+            for (int c = 0; c < WIDTH; c++) {
+                sketch[d][c] += o.sketch[d][c];
+            }
+        }
+        // Candidates from both sides are re-estimated against the merged sketch
+        List<String> words = new ArrayList<>(candidates.keySet());
+        words.addAll(o.candidates.keySet());
+        candidates.clear();
+        byEstimate.clear();
+        for (String w : words) {
+            offerCandidate(w, estimate(w));
+        }
+    }
+
+    private CorpusStats copy() {
+        try {
+            return decode(encode());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ==== READING ====
+
+    public synchronized long sentences() {
+        return sentences;
+    }
+
+    public synchronized long tokens() {
+        return tokens;
+    }
+
+    public synchronized long[] lengthHistogram() {
+        return lengths.clone();
+    }
+
+    public synchronized List<Map.Entry<String, Long>> topTags(int n) {
+        return top(tags, n);
+    }
+
+    public synchronized List<Map.Entry<String, Long>> topRelations(int n) {
+        return top(relations, n);
+    }
+
+    // Approximate counts (never under-estimated) of the most frequent words
+    public synchronized List<Map.Entry<String, Long>> topWords(int n) {
+        return top(candidates, n);
+    }
+
+    private synchronized long estimate(String w) {
+        long estimate = Long.MAX_VALUE;
+        for (int d = 0; d < DEPTH; d++) {
+            estimate = Math.min(estimate, sketch[d][bucket(w, d)]);
+        }
+        return estimate;
+    }
+
+    // O(1) for a word that would not make the list, which is most tokens; O(log k) otherwise
+    private void offerCandidate(String w, long estimate) {
+        Long old = candidates.get(w);
+        if (old != null) {
+            if (old == estimate)
+                return;
+            byEstimate.remove(new Candidate(w, old));
+        } else if (candidates.size() >= TOP_K * 2) {
+            Candidate smallest = byEstimate.first();
+            if (estimate <= smallest.estimate)
+                return;
+            byEstimate.pollFirst();
+            candidates.remove(smallest.word);
+        }
+        candidates.put(w, estimate);
+        byEstimate.add(new Candidate(w, estimate));
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        final String word;
+        final long estimate;
+
+        Candidate(String word, long estimate) {
+            this.word = word;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public int compareTo(Candidate o) {
+            int c = Long.compare(estimate, o.estimate);
+            return c != 0 ? c : word.compareTo(o.word);
+        }
+    }
+
+    private static List<Map.Entry<String, Long>> top(Map<String, Long> counts, int n) {
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(Map.copyOf(counts).entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return sorted.subList(0, Math.min(n, sorted.size()));
+    }
+
+    private static int bucket(String w, int row) {
+        int h = w.hashCode() * SEEDS[row];
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return Math.floorMod(h, WIDTH);
+    }
+
+    // ==== WIRE FORMAT ====
+    // base64(deflate(binary)), safe to embed as a JSON string value
+
+    public synchronized String encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeByte(1); // format version
+            out.writeLong(sentences);
+            out.writeLong(tokens);
+            for (long l : lengths) {
+                out.writeLong(l);
+            }
+            writeCounts(out, tags);
+            writeCounts(out, relations);
+            for (long[] row : sketch) {
+                for (long c : row) {
+                    writeVarLong(out, c);
+                }
+            }
+            writeCounts(out, candidates);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    public static CorpusStats decode(String encoded) throws IOException {
+        CorpusStats s = new CorpusStats();
+        byte[] raw = Base64.getDecoder().decode(encoded);
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(raw)))) {
+            int version = in.readByte();
+            if (version != 1)
+                throw new IOException("Unknown stats format " + version);
+            s.sentences = in.readLong();
+            s.tokens = in.readLong();
+            for (int i = 0; i < LENGTH_BUCKETS; i++) {
+                s.lengths[i] = in.readLong();
+            }
+            readCounts(in, s.tags);
+            readCounts(in, s.relations);
+            for (long[] row : s.sketch) {
+                for (int c = 0; c < WIDTH; c++) {
+                    row[c] = readVarLong(in);
+                }
+            }
+            Map<String, Long> candidates = new HashMap<>();
+            readCounts(in, candidates);
+            candidates.forEach(s::offerCandidate);
+        }
+        return s;
+    }
+
+    private static void writeCounts(DataOutputStream out, Map<String, Long> counts) throws IOException {
+        out.writeInt(counts.size());
+        for (Map.Entry<String, Long> e : counts.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue());
+        }
+    }
+
+    // Most sketch cells are small or zero: 7 bits per byte keeps them to one byte each
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void readCounts(DataInputStream in, Map<String, Long> counts) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            counts.put(in.readUTF(), in.readLong());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Many tasks or results in one queue message, so one SQS request carries a batch instead of
+ * a single item. Items are written by a typed Codec; the envelope is
+ *
+ *   body    = "E1" + base64(flag byte + payload), flag 1 if the payload is gzipped
+ *   payload = kind byte, item count (int), the items
+ *
+ * pack() splits a list into as few envelopes as fit the SQS message limit, in list order.
+ * unpack() trusts nothing it reads: counts and lengths are checked against the bytes left.
+ */
+public final class Envelope<T> {
+
+    public interface Codec<T> {
+        byte kind(); // tells a task envelope from a result envelope
+
+        void write(DataOutputStream out, T item) throws IOException;
+
+        T read(DataInputStream in) throws IOException;
+    }
+
+    public static final int MAX_BODY_BYTES = 256 * 1024; // SQS message limit
+    private static final String PREFIX = "E1";
+    // Uncompressed items per envelope: base64 of this (plus gzip's worst case) stays under the limit
+    private static final int MAX_RAW_BYTES = MAX_BODY_BYTES / 4 * 3 - 4096;
+    private static final int COMPRESS_ABOVE_BYTES = 512;
+
+    public final String body;
+    public final List<T> items;
+
+    private Envelope(String body, List<T> items) {
+        this.body = body;
+        this.items = items;
+    }
+
+    // Whether pack() can send the item at all
+    public static <T> boolean fits(T item, Codec<T> codec) {
+        return encodeItem(codec, item).length <= MAX_RAW_BYTES;
+    }
+
+    // IllegalArgumentException if an item does not fit in a message on its own, see fits()
+    public static <T> List<Envelope<T>> pack(List<T> items, Codec<T> codec) {
+        List<Envelope<T>> envelopes = new ArrayList<>();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        List<T> current = new ArrayList<>();
+        for (T item : items) {
+            byte[] encoded = encodeItem(codec, item);
+            if (encoded.length > MAX_RAW_BYTES)
+                throw new IllegalArgumentException("Item of " + encoded.length + " bytes does not fit in a message");
+            if (!current.isEmpty() && raw.size() + encoded.length > MAX_RAW_BYTES) {
+                envelopes.add(new Envelope<>(seal(codec, current.size(), raw.toByteArray()), current));
+                raw.reset();
+                current = new ArrayList<>();
+            }
+            raw.writeBytes(encoded);
+            current.add(item);
+        }
+        if (!current.isEmpty())
+            envelopes.add(new Envelope<>(seal(codec, current.size(), raw.toByteArray()), current));
+        return envelopes;
+    }
+
+    // IllegalArgumentException if the body is not an envelope of this codec's kind
+    public static <T> List<T> unpack(String body, Codec<T> codec) {
+        if (body == null || !body.startsWith(PREFIX))
+            throw new IllegalArgumentException("Not an envelope: " + abbreviate(body));
+        try {
+            byte[] bytes = Base64.getDecoder().decode(body.substring(PREFIX.length()));
+            byte[] plain = bytes[0] == 1 ? gunzip(bytes) : Arrays.copyOfRange(bytes, 1, bytes.length);
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain))) {
+                byte kind = in.readByte();
+                if (kind != codec.kind())
+                    throw new IllegalArgumentException(
+                            "Envelope of kind " + (char) kind + ", expected " + (char) codec.kind());
+                int count = in.readInt();
+                // every item takes at least one byte
+                if (count < 0 || count > in.available())
+                    throw new IllegalArgumentException("Envelope of " + plain.length + " bytes claims " + count + " items");
+                List<T> items = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    items.add(codec.read(in));
+                }
+                return items;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (e instanceof IllegalArgumentException)
+                throw (IllegalArgumentException) e;
+            throw new IllegalArgumentException("Malformed envelope: " + e.getMessage(), e);
+        }
+    }
+
+    // pack() never seals more than MAX_RAW_BYTES of items, so a payload inflating past that is not ours
+    private static byte[] gunzip(byte[] framed) throws IOException {
+        int limit = MAX_RAW_BYTES + 5;
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(framed, 1, framed.length - 1))) {
+            byte[] plain = in.readNBytes(limit + 1);
+            if (plain.length > limit)
+                throw new IllegalArgumentException("Envelope inflates past " + limit + " bytes");
+            return plain;
+        }
+    }
+
+    private static <T> byte[] encodeItem(Codec<T> codec, T item) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            codec.write(out, item);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory streams do not fail
+        }
+    }
+
+    private static <T> String seal(Codec<T> codec, int count, byte[] items) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(items.length + 5);
+            DataOutputStream header = new DataOutputStream(payload);
+            header.writeByte(codec.kind());
+            header.writeInt(count);
+            header.flush();
+            payload.writeBytes(items);
+
+            byte[] plain = payload.toByteArray();
+            byte[] packed = plain;
+            byte flag = 0;
+            if (plain.length > COMPRESS_ABOVE_BYTES) {
+                ByteArrayOutputStream zipped = new ByteArrayOutputStream(plain.length / 2);
+                try (GZIPOutputStream gz = new GZIPOutputStream(zipped)) {
+                    gz.write(plain);
+                }
+                if (zipped.size() < plain.length) {
+                    packed = zipped.toByteArray();
+                    flag = 1;
+                }
+            }
+            byte[] framed = new byte[packed.length + 1];
+            framed[0] = flag;
+            System.arraycopy(packed, 0, framed, 1, packed.length);
+            return PREFIX + Base64.getEncoder().encodeToString(framed);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ===== field helpers for codecs =====
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // `in` reads a decoded payload held in memory, so available() is exactly what is left of it
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        if (length > in.available())
+            throw new IOException("String of " + length + " bytes, " + in.available() + " left");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String abbreviate(String s) {
+        if (s == null)
+            return "null";
+        return s.length() <= 80 ? s : s.substring(0, 80) + "...";
+    }
+}
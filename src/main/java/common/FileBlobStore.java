@@ -0,0 +1,133 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// BlobStore on the local filesystem: s3://bucket/key lives at <root>/bucket/key. Writes go
+// to a temp file first and are moved into place, so readers never see half an object.
+public class FileBlobStore implements BlobStore {
+
+    private final Path root;
+    private final Latency latency;
+    private final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "file-blob-put");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public FileBlobStore(Path root, long latencyMillis) {
+        this.root = root.toAbsolutePath().normalize();
+        this.latency = new Latency(latencyMillis);
+    }
+
+    @Override
+    public void ensureBucket(String bucket) {
+        try {
+            Files.createDirectories(root.resolve(bucket));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void put(String bucket, String key, Path file) {
+        try (InputStream in = Files.newInputStream(file)) {
+            put(bucket, key, in, Files.size(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String bucket, String key, Path file) {
+        return CompletableFuture.runAsync(() -> put(bucket, key, file), writers);
+    }
+
+    @Override
+    public void put(String bucket, String key, byte[] data, String contentType) {
+        write(bucket, key, tmp -> Files.write(tmp, data));
+    }
+
+    @Override
+    public void put(String bucket, String key, InputStream in, long length) {
+        write(bucket, key, tmp -> {
+            long copied = Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            if (copied != length)
+                throw new IOException("Expected " + length + " bytes for " + key + ", got " + copied);
+        });
+    }
+
+    @Override
+    public InputStream open(String bucket, String key) {
+        latency.pause();
+        try {
+            return Files.newInputStream(path(bucket, key));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long size(String bucket, String key) {
+        latency.pause();
+        try {
+            return Files.size(path(bucket, key));
+        } catch (NoSuchFileException e) {
+            return -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void delete(String bucket, List<String> keys) {
+        latency.pause();
+        try {
+            for (String key : keys) {
+                Files.deleteIfExists(path(bucket, key));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private interface Writer {
+        void write(Path tmp) throws IOException;
+    }
+
+    private void write(String bucket, String key, Writer writer) {
+        latency.pause();
+        Path target = path(bucket, key);
+        try {
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), ".put-", ".tmp");
+            try {
+                writer.write(tmp);
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Keys may contain '/', never '..': they are generated by this system
+    private Path path(String bucket, String key) {
+        Path p = root.resolve(bucket).resolve(key).normalize();
+        if (!p.startsWith(root.resolve(bucket)))
+            throw new IllegalArgumentException("Key escapes bucket: " + key);
+        return p;
+    }
+}
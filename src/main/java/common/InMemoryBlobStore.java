@@ -0,0 +1,90 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// BlobStore held in this JVM's heap. Meant for load tests and small local runs.
+public class InMemoryBlobStore implements BlobStore {
+
+    private final ConcurrentHashMap<String, byte[]> objects = new ConcurrentHashMap<>(); // "bucket/key" -> bytes
+    private final Latency latency;
+
+    public InMemoryBlobStore(long latencyMillis) {
+        this.latency = new Latency(latencyMillis);
+    }
+
+    @Override
+    public void ensureBucket(String bucket) {
+        // buckets exist implicitly
+    }
+
+    @Override
+    public void put(String bucket, String key, Path file) {
+        try {
+            put(bucket, key, Files.readAllBytes(file), null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The file is read right away; only the simulated round trip is waited out off-thread
+    @Override
+    public CompletableFuture<Void> putAsync(String bucket, String key, Path file) {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new UncheckedIOException(e));
+        }
+        return CompletableFuture.runAsync(() -> objects.put(bucket + "/" + key, data),
+                CompletableFuture.delayedExecutor(latency.next(), TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public void put(String bucket, String key, byte[] data, String contentType) {
+        latency.pause();
+        objects.put(bucket + "/" + key, data);
+    }
+
+    @Override
+    public void put(String bucket, String key, InputStream in, long length) {
+        try {
+            byte[] data = in.readNBytes((int) length);
+            if (data.length != length)
+                throw new IOException("Expected " + length + " bytes for " + key + ", got " + data.length);
+            put(bucket, key, data, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public InputStream open(String bucket, String key) {
+        latency.pause();
+        byte[] data = objects.get(bucket + "/" + key);
+        return data == null ? null : new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public long size(String bucket, String key) {
+        latency.pause();
+        byte[] data = objects.get(bucket + "/" + key);
+        return data == null ? -1 : data.length;
+    }
+
+    @Override
+    public void delete(String bucket, List<String> keys) {
+        latency.pause();
+        for (String key : keys) {
+            objects.remove(bucket + "/" + key);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MessageQueue held in this JVM, for running LocalApplication, the manager and workers in one
+ * process. Behaves like a standard SQS queue where it matters to the pipeline: long polling,
+ * visibility timeouts with redelivery, and receipt handles that only delete the receive they
+ * came from. Unknown queue URLs are created on first use.
+ */
+public class InMemoryMessageQueue implements MessageQueue {
+
+    private static final String URL_PREFIX = "mem://";
+
+    private static final class Stored {
+        final String messageId;
+        final String body;
+        int receives = 0;
+
+        Stored(String messageId, String body) {
+            this.messageId = messageId;
+            this.body = body;
+        }
+    }
+
+    private static final class Lease {
+        final Stored message;
+        final long visibleAt;
+
+        Lease(Stored message, long visibleAt) {
+            this.message = message;
+            this.visibleAt = visibleAt;
+        }
+    }
+
+    private static final class Queue {
+        final ArrayDeque<Stored> visible = new ArrayDeque<>();
+        final Map<String, Lease> inFlight = new HashMap<>(); // receipt handle -> lease
+        long nextExpiry = Long.MAX_VALUE;
+
+        // Leases past their timeout go back to the front, like an SQS redelivery. Caller holds the lock.
+        void expire(long now) {
+            if (now < nextExpiry)
+                return;
+            nextExpiry = Long.MAX_VALUE;
+            for (Iterator<Lease> it = inFlight.values().iterator(); it.hasNext();) {
+                Lease lease = it.next();
+                if (lease.visibleAt <= now) {
+                    visible.addFirst(lease.message);
+                    it.remove();
+                } else {
+                    nextExpiry = Math.min(nextExpiry, lease.visibleAt);
+                }
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Queue> queues = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final Latency latency;
+    private final ExecutorService pollers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "mem-receive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public InMemoryMessageQueue(long latencyMillis) {
+        this.latency = new Latency(latencyMillis);
+    }
+
+    @Override
+    public String ensureQueue(String name, int visibilityTimeoutSeconds) {
+        // every receive states its own visibility timeout, so the queue needs no default
+        String url = URL_PREFIX + name;
+        queue(url);
+        return url;
+    }
+
+    @Override
+    public void deleteQueue(String queueUrl) {
+        queues.remove(queueUrl);
+    }
+
+    @Override
+    public List<Message> receive(String queueUrl, int max, int waitSeconds, int visibilityTimeoutSeconds) {
+        latency.pause();
+        Queue q = queue(queueUrl);
+        List<Message> received = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + waitSeconds * 1000L;
+        synchronized (q) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                q.expire(now);
+                while (!q.visible.isEmpty() && received.size() < max) {
+                    Stored m = q.visible.pollFirst();
+                    String handle = m.messageId + "#" + (++m.receives);
+                    long visibleAt = now + visibilityTimeoutSeconds * 1000L;
+                    q.inFlight.put(handle, new Lease(m, visibleAt));
+                    q.nextExpiry = Math.min(q.nextExpiry, visibleAt);
+                    received.add(new Message(m.messageId, handle, m.body));
+                }
+                if (!received.isEmpty() || now >= deadline)
+                    return received;
+                try {
+                    // wake up for a send, or when the next lease may have expired
+                    q.wait(Math.max(1, Math.min(deadline, q.nextExpiry) - now));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return received;
+                }
+            }
+        }
+    }
+
+    // Polls block a thread here; there is no network to wait on without one
+    @Override
+    public CompletableFuture<List<Message>> receiveAsync(String queueUrl, int max, int waitSeconds,
+            int visibilityTimeoutSeconds) {
+        return CompletableFuture.supplyAsync(() -> receive(queueUrl, max, waitSeconds, visibilityTimeoutSeconds),
+                pollers);
+    }
+
+    @Override
+    public CompletableFuture<Void> send(String queueUrl, String body) {
+        Queue q = queue(queueUrl);
+        Stored m = new Stored("m-" + ids.incrementAndGet(), body);
+        return CompletableFuture.runAsync(() -> {
+            synchronized (q) {
+                q.visible.addLast(m);
+                q.notifyAll();
+            }
+        }, CompletableFuture.delayedExecutor(latency.next(), TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String queueUrl, String receiptHandle) {
+        Queue q = queue(queueUrl);
+        return CompletableFuture.runAsync(() -> {
+            synchronized (q) {
+                // a stale handle (the message was received again since) deletes nothing
+                q.inFlight.remove(receiptHandle);
+            }
+        }, CompletableFuture.delayedExecutor(latency.next(), TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public CompletableFuture<Void> extendVisibility(String queueUrl, String receiptHandle,
+            int visibilityTimeoutSeconds) {
+        Queue q = queue(queueUrl);
+        return CompletableFuture.runAsync(() -> {
+            synchronized (q) {
+                q.expire(System.currentTimeMillis());
+                // like delete, a lease that already ran out (or a stale handle) is left alone
+                Lease lease = q.inFlight.get(receiptHandle);
+                if (lease != null) {
+                    long visibleAt = System.currentTimeMillis() + visibilityTimeoutSeconds * 1000L;
+                    q.inFlight.put(receiptHandle, new Lease(lease.message, visibleAt));
+                    q.nextExpiry = Math.min(q.nextExpiry, visibleAt);
+                }
+            }
+        }, CompletableFuture.delayedExecutor(latency.next(), TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public Depth depth(String queueUrl) {
+        latency.pause();
+        Queue q = queue(queueUrl);
+        synchronized (q) {
+            q.expire(System.currentTimeMillis());
+            return new Depth(q.visible.size(), q.inFlight.size());
+        }
+    }
+
+    @Override
+    public void flush() {
+        // nothing is buffered
+    }
+
+    private Queue queue(String url) {
+        return queues.computeIfAbsent(url, k -> new Queue());
+    }
+}
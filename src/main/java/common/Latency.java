@@ -0,0 +1,31 @@
+package common;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Injected delay for the in-process transports, so a local run can mimic a network round trip.
+// Each call waits between half and one and a half times the mean.
+final class Latency {
+
+    private final long meanMillis;
+
+    Latency(long meanMillis) {
+        this.meanMillis = Math.max(0, meanMillis);
+    }
+
+    long next() {
+        if (meanMillis == 0)
+            return 0;
+        return meanMillis / 2 + ThreadLocalRandom.current().nextLong(meanMillis + 1);
+    }
+
+    void pause() {
+        long millis = next();
+        if (millis == 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package common;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The queues between LocalApplication, the manager and the workers, with SQS semantics:
+ * a received message stays hidden for its visibility timeout and comes back unless it is
+ * deleted with the receipt handle of that receive. Queues are addressed by the URL that
+ * ensureQueue returned (or that was passed on the command line).
+ */
+public interface MessageQueue {
+
+    final class Message {
+        private final String messageId;
+        private final String receiptHandle;
+        private final String body;
+
+        public Message(String messageId, String receiptHandle, String body) {
+            this.messageId = messageId;
+            this.receiptHandle = receiptHandle;
+            this.body = body;
+        }
+
+        public String messageId() {
+            return messageId;
+        }
+
+        public String receiptHandle() {
+            return receiptHandle;
+        }
+
+        public String body() {
+            return body;
+        }
+    }
+
+    final class Depth {
+        public final int visible; // waiting to be received
+        public final int inFlight; // received, not yet deleted
+
+        public Depth(int visible, int inFlight) {
+            this.visible = visible;
+            this.inFlight = inFlight;
+        }
+    }
+
+    // Creates the queue if needed and returns its URL
+    String ensureQueue(String name, int visibilityTimeoutSeconds);
+
+    // Removes the queue and anything still in it
+    void deleteQueue(String queueUrl);
+
+    // Long-polls up to waitSeconds for at most max messages
+    List<Message> receive(String queueUrl, int max, int waitSeconds, int visibilityTimeoutSeconds);
+
+    // The same without a thread waiting out the long poll (where the transport allows)
+    CompletableFuture<List<Message>> receiveAsync(String queueUrl, int max, int waitSeconds,
+            int visibilityTimeoutSeconds);
+
+    // Completes once the queue has accepted the message; may be batched with other sends
+    CompletableFuture<Void> send(String queueUrl, String body);
+
+    CompletableFuture<Void> delete(String queueUrl, String receiptHandle);
+
+    // Keeps a received message hidden for another visibilityTimeoutSeconds, counted from now
+    CompletableFuture<Void> extendVisibility(String queueUrl, String receiptHandle, int visibilityTimeoutSeconds);
+
+    Depth depth(String queueUrl);
+
+    // Pushes out anything buffered and waits (bounded) until it was accepted
+    void flush();
+}
@@ -0,0 +1,23 @@
+package common;
+
+import java.util.List;
+
+/**
+ * A BlobStore that can assemble one object from parts uploaded separately. Stores that cannot
+ * simply do not implement it; callers check with instanceof and fall back to a single put.
+ *
+ * Parts are numbered from 1, may be put concurrently and in any order, and are completed with
+ * the tags putPart returned, in part order. On S3 all parts but the last must be at least 5 MB.
+ */
+public interface MultipartBlobStore extends BlobStore {
+
+    // The upload id the other calls take
+    String startMultipart(String bucket, String key);
+
+    String putPart(String bucket, String key, String uploadId, int partNumber, byte[] data);
+
+    void completeMultipart(String bucket, String key, String uploadId, List<String> partTags);
+
+    // Discards the parts uploaded so far
+    void abortMultipart(String bucket, String key, String uploadId);
+}
@@ -0,0 +1,62 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Worker -> manager: the outcome of one analysis of one document (or of one part of it)
+public final class ResultMessage {
+
+    public final String jobId;
+    public final int task; // the manager's task index, -1 if the task carried none
+    public final String url;
+    public final String analysis;
+    public final boolean ok;
+    public final String resultS3; // null if failed
+    public final String error; // null if ok
+    public final String stats; // encoded CorpusStats, only on a document's first result; null otherwise
+    public final int part;
+    public final int parts;
+
+    public ResultMessage(String jobId, int task, String url, String analysis, boolean ok, String resultS3,
+            String error, String stats, int part, int parts) {
+        this.jobId = jobId;
+        this.task = task;
+        this.url = url;
+        this.analysis = analysis;
+        this.ok = ok;
+        this.resultS3 = resultS3;
+        this.error = error;
+        this.stats = stats;
+        this.part = part;
+        this.parts = parts;
+    }
+
+    public static final Envelope.Codec<ResultMessage> CODEC = new Envelope.Codec<>() {
+        @Override
+        public byte kind() {
+            return 'R';
+        }
+
+        @Override
+        public void write(DataOutputStream out, ResultMessage r) throws IOException {
+            Envelope.writeString(out, r.jobId);
+            out.writeInt(r.task);
+            Envelope.writeString(out, r.url);
+            Envelope.writeString(out, r.analysis);
+            out.writeBoolean(r.ok);
+            Envelope.writeString(out, r.resultS3);
+            Envelope.writeString(out, r.error);
+            Envelope.writeString(out, r.stats);
+            out.writeInt(r.part);
+            out.writeInt(r.parts);
+        }
+
+        @Override
+        public ResultMessage read(DataInputStream in) throws IOException {
+            return new ResultMessage(Envelope.readString(in), in.readInt(), Envelope.readString(in),
+                    Envelope.readString(in), in.readBoolean(), Envelope.readString(in), Envelope.readString(in),
+                    Envelope.readString(in), in.readInt(), in.readInt());
+        }
+    };
+}
@@ -0,0 +1,175 @@
+package common;
+
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.BucketAlreadyOwnedByYouException;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.ServerSideEncryption;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// BlobStore on Amazon S3. putAsync goes through the async client, everything else is sync.
+public class S3BlobStore implements MultipartBlobStore {
+
+    private static final int MAX_DELETE_KEYS = 1000; // DeleteObjects limit per call
+
+    private final S3Client s3;
+    private final S3AsyncClient s3Async;
+
+    public S3BlobStore(S3Client s3, S3AsyncClient s3Async) {
+        this.s3 = s3;
+        this.s3Async = s3Async;
+    }
+
+    @Override
+    public void ensureBucket(String bucket) {
+        try {
+            s3.createBucket(CreateBucketRequest.builder().bucket(bucket).build());
+            System.out.println("S3 Bucket created successfully: " + bucket);
+        } catch (BucketAlreadyOwnedByYouException e) {
+            System.out.println("S3 Bucket already exists and is owned by you: " + bucket);
+        }
+    }
+
+    @Override
+    public void put(String bucket, String key, Path file) {
+        s3.putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(), RequestBody.fromFile(file));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String bucket, String key, Path file) {
+        return s3Async.putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(),
+                AsyncRequestBody.fromFile(file)).thenApply(response -> null);
+    }
+
+    @Override
+    public void put(String bucket, String key, byte[] data, String contentType) {
+        PutObjectRequest.Builder req = PutObjectRequest.builder().bucket(bucket).key(key);
+        if (contentType != null)
+            req.contentType(contentType);
+        s3.putObject(req.build(), RequestBody.fromBytes(data));
+    }
+
+    @Override
+    public void put(String bucket, String key, InputStream in, long length) {
+        s3.putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(),
+                RequestBody.fromInputStream(in, length));
+    }
+
+    @Override
+    public InputStream open(String bucket, String key) {
+        try {
+            return s3.getObject(GetObjectRequest.builder().bucket(bucket).key(key).build());
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public long size(String bucket, String key) {
+        HeadObjectResponse head = head(bucket, key);
+        return head == null ? -1 : head.contentLength();
+    }
+
+    // A single-part upload's ETag is the MD5 of the content, unless the object is KMS-encrypted;
+    // a multipart ETag ("...-N") is not
+    @Override
+    public Stat stat(String bucket, String key) {
+        HeadObjectResponse head = head(bucket, key);
+        if (head == null)
+            return null;
+        String etag = head.eTag() == null ? "" : head.eTag().replace("\"", "");
+        boolean md5 = !etag.isEmpty() && !etag.contains("-")
+                && head.serverSideEncryption() != ServerSideEncryption.AWS_KMS;
+        return new Stat(head.contentLength(), md5 ? etag : null);
+    }
+
+    private HeadObjectResponse head(String bucket, String key) {
+        try {
+            return s3.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) // HEAD has no body, so older SDKs cannot tell it is NoSuchKey
+                return null;
+            throw e;
+        }
+    }
+
+    @Override
+    public byte[] readRange(String bucket, String key, long from, int length) {
+        try {
+            return s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(key)
+                    .range("bytes=" + from + "-" + (from + length - 1)).build()).asByteArray();
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+    }
+
+    // Each part carries a CRC32 that S3 checks on arrival; the tag is "<etag> <crc32>"
+    @Override
+    public String startMultipart(String bucket, String key) {
+        return s3.createMultipartUpload(CreateMultipartUploadRequest.builder().bucket(bucket).key(key)
+                .checksumAlgorithm(ChecksumAlgorithm.CRC32).build()).uploadId();
+    }
+
+    @Override
+    public String putPart(String bucket, String key, String uploadId, int partNumber, byte[] data) {
+        UploadPartResponse part = s3.uploadPart(UploadPartRequest.builder().bucket(bucket).key(key)
+                .uploadId(uploadId).partNumber(partNumber).checksumAlgorithm(ChecksumAlgorithm.CRC32).build(),
+                RequestBody.fromBytes(data));
+        return part.eTag() + " " + part.checksumCRC32();
+    }
+
+    @Override
+    public void completeMultipart(String bucket, String key, String uploadId, List<String> partTags) {
+        List<CompletedPart> parts = new ArrayList<>();
+        for (int i = 0; i < partTags.size(); i++) {
+            String[] tag = partTags.get(i).split(" ", 2);
+            parts.add(CompletedPart.builder().partNumber(i + 1).eTag(tag[0]).checksumCRC32(tag[1]).build());
+        }
+        s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder().bucket(bucket).key(key)
+                .uploadId(uploadId).multipartUpload(CompletedMultipartUpload.builder().parts(parts).build()).build());
+    }
+
+    @Override
+    public void abortMultipart(String bucket, String key, String uploadId) {
+        s3.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(uploadId)
+                .build());
+    }
+
+    @Override
+    public void delete(String bucket, List<String> keys) {
+        for (int from = 0; from < keys.size(); from += MAX_DELETE_KEYS) {
+            List<ObjectIdentifier> ids = new ArrayList<>();
+            for (String key : keys.subList(from, Math.min(keys.size(), from + MAX_DELETE_KEYS))) {
+                ids.add(ObjectIdentifier.builder().key(key).build());
+            }
+            s3.deleteObjects(DeleteObjectsRequest.builder().bucket(bucket)
+                    .delete(Delete.builder().objects(ids).build()).build());
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package common;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers SQS sends and deletes per queue and flushes them with SendMessageBatch /
+ * DeleteMessageBatch once a buffer holds 10 entries (or 256 KB of bodies), or when it has
+ * lingered for a few milliseconds. Flushes are calls on the async client, so no thread waits
+ * on them and any number can be in flight; entries that fail for a retryable reason are
+ * re-buffered after an exponential, jittered backoff, up to MAX_ATTEMPTS tries.
+ * Each call returns a future completed when its own entry has been accepted by SQS.
+ */
+public class SqsBatcher implements AutoCloseable {
+
+    private static final int MAX_ENTRIES = 10; // SQS batch limit
+    private static final int MAX_BATCH_BYTES = 256 * 1024; // SQS payload limit per batch
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_BASE_MS = 100;
+    private static final long BACKOFF_MAX_MS = 5000;
+
+    private enum Kind { SEND, DELETE }
+
+    private static final class Entry {
+        final String payload; // message body or receipt handle
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        int attempts = 0;
+
+        Entry(String payload) {
+            this.payload = payload;
+        }
+    }
+
+    private static final class Buffer {
+        final Kind kind;
+        final String queueUrl;
+        List<Entry> entries = new ArrayList<>();
+        int bytes = 0;
+
+        Buffer(Kind kind, String queueUrl) {
+            this.kind = kind;
+            this.queueUrl = queueUrl;
+        }
+    }
+
+    private final SqsAsyncClient sqs;
+    private final Map<String, Buffer> buffers = new ConcurrentHashMap<>(); // "SEND|url" -> buffer
+    private final ScheduledExecutorService linger;
+
+    public SqsBatcher(SqsAsyncClient sqs, long lingerMillis) {
+        this.sqs = sqs;
+        this.linger = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "sqs-linger"));
+        linger.scheduleWithFixedDelay(this::flushAll, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<Void> send(String queueUrl, String body) {
+        return add(Kind.SEND, queueUrl, new Entry(body));
+    }
+
+    public CompletableFuture<Void> delete(String queueUrl, String receiptHandle) {
+        if (receiptHandle == null || receiptHandle.isEmpty())
+            return CompletableFuture.completedFuture(null);
+        return add(Kind.DELETE, queueUrl, new Entry(receiptHandle));
+    }
+
+    // Sends whatever is buffered now, without waiting for the linger tick. The future
+    // completes once every entry sent here was accepted or gave up.
+    public CompletableFuture<Void> flushAll() {
+        List<CompletableFuture<Void>> flushed = new ArrayList<>();
+        for (Buffer buffer : buffers.values()) {
+            List<Entry> batch = take(buffer, true);
+            if (!batch.isEmpty()) {
+                batch.forEach(e -> flushed.add(e.done));
+                flush(buffer, batch);
+            }
+        }
+        return CompletableFuture.allOf(flushed.toArray(new CompletableFuture[0]));
+    }
+
+    @Override
+    public void close() {
+        linger.shutdown();
+        try {
+            flushAll().get(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("[SQS] flush on close incomplete: " + e.getMessage());
+        }
+    }
+
+    private CompletableFuture<Void> add(Kind kind, String queueUrl, Entry entry) {
+        Buffer buffer = buffers.computeIfAbsent(kind + "|" + queueUrl, k -> new Buffer(kind, queueUrl));
+        int size = entry.payload.getBytes(StandardCharsets.UTF_8).length;
+        List<Entry> full = null;
+        synchronized (buffer) {
+            // Flush first if this body would push the batch over the payload limit
+            if (kind == Kind.SEND && buffer.bytes + size > MAX_BATCH_BYTES && !buffer.entries.isEmpty())
+                full = take(buffer, true);
+            buffer.entries.add(entry);
+            buffer.bytes += size;
+        }
+        if (full != null)
+            flush(buffer, full);
+
+        List<Entry> batch = take(buffer, false);
+        if (!batch.isEmpty())
+            flush(buffer, batch);
+        return entry.done;
+    }
+
+    // Removes up to one batch from the buffer; a partial batch only when `partial` is set
+    private static List<Entry> take(Buffer buffer, boolean partial) {
+        synchronized (buffer) {
+            int n = Math.min(buffer.entries.size(), MAX_ENTRIES);
+            if (n == 0 || (n < MAX_ENTRIES && !partial))
+                return List.of();
+            List<Entry> batch = new ArrayList<>(buffer.entries.subList(0, n));
+            buffer.entries.subList(0, n).clear();
+            for (Entry e : batch) {
+                buffer.bytes -= e.payload.getBytes(StandardCharsets.UTF_8).length;
+            }
+            return batch;
+        }
+    }
+
+    private void flush(Buffer buffer, List<Entry> batch) {
+        CompletableFuture<List<BatchResultErrorEntry>> call;
+        try {
+            call = buffer.kind == Kind.SEND ? sendBatch(buffer.queueUrl, batch) : deleteBatch(buffer.queueUrl, batch);
+        } catch (Exception e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        call.whenComplete((failed, error) -> {
+            if (error != null) {
+                // the whole call failed (network, throttling): every entry is retryable
+                for (Entry entry : batch) {
+                    retryOrFail(buffer, entry, error.getMessage());
+                }
+                return;
+            }
+
+            boolean[] isFailed = new boolean[batch.size()];
+            for (BatchResultErrorEntry f : failed) {
+                int i = Integer.parseInt(f.id());
+                isFailed[i] = true;
+                if (f.senderFault())
+                    batch.get(i).done.completeExceptionally(new IllegalStateException(f.code() + ": " + f.message()));
+                else
+                    retryOrFail(buffer, batch.get(i), f.code() + ": " + f.message());
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (!isFailed[i])
+                    batch.get(i).done.complete(null);
+            }
+        });
+    }
+
+    private void retryOrFail(Buffer buffer, Entry entry, String reason) {
+        if (++entry.attempts >= MAX_ATTEMPTS) {
+            entry.done.completeExceptionally(new IllegalStateException(
+                    buffer.kind + " to " + buffer.queueUrl + " failed after " + entry.attempts + " attempts: " + reason));
+            return;
+        }
+        // Back off 100 ms, 200 ms, ... (capped), half of it jittered so entries throttled
+        // together do not all come back on the same tick
+        long delay = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << (entry.attempts - 1));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        try {
+            linger.schedule(() -> requeue(buffer, entry), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            requeue(buffer, entry); // closing: retry now rather than drop it
+        }
+    }
+
+    // Back in the buffer and flushed straight away, so a retry does not depend on the linger
+    // tick, which stops on close
+    private void requeue(Buffer buffer, Entry entry) {
+        synchronized (buffer) {
+            buffer.entries.add(entry);
+            buffer.bytes += entry.payload.getBytes(StandardCharsets.UTF_8).length;
+        }
+        List<Entry> batch = take(buffer, true);
+        if (!batch.isEmpty())
+            flush(buffer, batch);
+    }
+
+    private CompletableFuture<List<BatchResultErrorEntry>> sendBatch(String queueUrl, List<Entry> batch) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(SendMessageBatchRequestEntry.builder()
+                    .id(String.valueOf(i)).messageBody(batch.get(i).payload).build());
+        }
+        return sqs.sendMessageBatch(SendMessageBatchRequest.builder()
+                .queueUrl(queueUrl).entries(entries).build()).thenApply(SendMessageBatchResponse::failed);
+    }
+
+    private CompletableFuture<List<BatchResultErrorEntry>> deleteBatch(String queueUrl, List<Entry> batch) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(DeleteMessageBatchRequestEntry.builder()
+                    .id(String.valueOf(i)).receiptHandle(batch.get(i).payload).build());
+        }
+        return sqs.deleteMessageBatch(DeleteMessageBatchRequest.builder()
+                .queueUrl(queueUrl).entries(entries).build()).thenApply(DeleteMessageBatchResponse::failed);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,112 @@
+package common;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.CreateQueueRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteQueueRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueUrlRequest;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// MessageQueue on Amazon SQS. Receives, sends and deletes use the async client (sends and
+// deletes batched by an SqsBatcher); the rare control calls use the sync one.
+public class SqsMessageQueue implements MessageQueue {
+
+    private final SqsClient sqs;
+    private final SqsAsyncClient sqsAsync;
+    private final SqsBatcher batcher;
+
+    public SqsMessageQueue(SqsClient sqs, SqsAsyncClient sqsAsync, long lingerMillis) {
+        this.sqs = sqs;
+        this.sqsAsync = sqsAsync;
+        this.batcher = new SqsBatcher(sqsAsync, lingerMillis);
+    }
+
+    @Override
+    public String ensureQueue(String name, int visibilityTimeoutSeconds) {
+        sqs.createQueue(CreateQueueRequest.builder()
+                .queueName(name)
+                .attributes(Map.of(QueueAttributeName.VISIBILITY_TIMEOUT, String.valueOf(visibilityTimeoutSeconds)))
+                .build());
+        return sqs.getQueueUrl(GetQueueUrlRequest.builder().queueName(name).build()).queueUrl();
+    }
+
+    @Override
+    public void deleteQueue(String queueUrl) {
+        sqs.deleteQueue(DeleteQueueRequest.builder().queueUrl(queueUrl).build());
+    }
+
+    @Override
+    public List<Message> receive(String queueUrl, int max, int waitSeconds, int visibilityTimeoutSeconds) {
+        return receiveAsync(queueUrl, max, waitSeconds, visibilityTimeoutSeconds).join();
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> receiveAsync(String queueUrl, int max, int waitSeconds,
+            int visibilityTimeoutSeconds) {
+        return sqsAsync.receiveMessage(ReceiveMessageRequest.builder()
+                        .queueUrl(queueUrl)
+                        .maxNumberOfMessages(max)
+                        .waitTimeSeconds(waitSeconds)
+                        .visibilityTimeout(visibilityTimeoutSeconds)
+                        .build())
+                .thenApply(SqsMessageQueue::toMessages);
+    }
+
+    private static List<Message> toMessages(ReceiveMessageResponse response) {
+        List<Message> messages = new ArrayList<>();
+        response.messages().forEach(m -> messages.add(new Message(m.messageId(), m.receiptHandle(), m.body())));
+        return messages;
+    }
+
+    @Override
+    public CompletableFuture<Void> send(String queueUrl, String body) {
+        return batcher.send(queueUrl, body);
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String queueUrl, String receiptHandle) {
+        return batcher.delete(queueUrl, receiptHandle);
+    }
+
+    @Override
+    public CompletableFuture<Void> extendVisibility(String queueUrl, String receiptHandle,
+            int visibilityTimeoutSeconds) {
+        return sqsAsync.changeMessageVisibility(ChangeMessageVisibilityRequest.builder()
+                        .queueUrl(queueUrl)
+                        .receiptHandle(receiptHandle)
+                        .visibilityTimeout(visibilityTimeoutSeconds)
+                        .build())
+                .thenApply(r -> null);
+    }
+
+    @Override
+    public Depth depth(String queueUrl) {
+        Map<QueueAttributeName, String> attrs = sqs.getQueueAttributes(GetQueueAttributesRequest.builder()
+                .queueUrl(queueUrl)
+                .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES,
+                        QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE)
+                .build()).attributes();
+        return new Depth(
+                Integer.parseInt(attrs.getOrDefault(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES, "0")),
+                Integer.parseInt(attrs.getOrDefault(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE, "0")));
+    }
+
+    @Override
+    public void flush() {
+        try {
+            batcher.flushAll().get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.err.println("[SQS] flush incomplete: " + e.getMessage());
+        }
+    }
+}
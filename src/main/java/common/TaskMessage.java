@@ -0,0 +1,73 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Manager -> worker: one document (or one byte range of it) and every analysis wanted for it.
+// The document is downloaded and parsed once; each analysis is reported as its own result.
+public final class TaskMessage {
+
+    public final String jobId;
+    public final String url;
+    public final List<String> analyses;
+    public final int[] taskIndexes; // the manager's task index of each analysis
+    // Byte range of a sharded document and its position among the parts; whole document: -1/-1, 0 of 1
+    public final long rangeStart;
+    public final long rangeEnd;
+    public final int part;
+    public final int parts;
+
+    public TaskMessage(String jobId, String url, List<String> analyses, int[] taskIndexes, long rangeStart,
+            long rangeEnd, int part, int parts) {
+        this.jobId = jobId;
+        this.url = url;
+        this.analyses = analyses;
+        this.taskIndexes = taskIndexes;
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        this.part = part;
+        this.parts = parts;
+    }
+
+    public static final Envelope.Codec<TaskMessage> CODEC = new Envelope.Codec<>() {
+        @Override
+        public byte kind() {
+            return 'T';
+        }
+
+        @Override
+        public void write(DataOutputStream out, TaskMessage t) throws IOException {
+            Envelope.writeString(out, t.jobId);
+            Envelope.writeString(out, t.url);
+            out.writeInt(t.analyses.size());
+            for (int i = 0; i < t.analyses.size(); i++) {
+                Envelope.writeString(out, t.analyses.get(i));
+                out.writeInt(i < t.taskIndexes.length ? t.taskIndexes[i] : -1);
+            }
+            out.writeLong(t.rangeStart);
+            out.writeLong(t.rangeEnd);
+            out.writeInt(t.part);
+            out.writeInt(t.parts);
+        }
+
+        @Override
+        public TaskMessage read(DataInputStream in) throws IOException {
+            String jobId = Envelope.readString(in);
+            String url = Envelope.readString(in);
+            int count = in.readInt();
+            if (count < 0 || count > 1024)
+                throw new IOException("Task with " + count + " analyses");
+            List<String> analyses = new ArrayList<>(count);
+            int[] taskIndexes = new int[count];
+            for (int i = 0; i < count; i++) {
+                analyses.add(Envelope.readString(in));
+                taskIndexes[i] = in.readInt();
+            }
+            return new TaskMessage(jobId, url, analyses, taskIndexes, in.readLong(), in.readLong(), in.readInt(),
+                    in.readInt());
+        }
+    };
+}
@@ -0,0 +1,68 @@
+package common;
+
+import java.nio.file.Paths;
+
+/**
+ * The queue and blob transports this JVM uses, one of each, shared by everything in it.
+ * TRANSPORT picks them on first use:
+ *   aws    - SQS and S3 (default)
+ *   memory - in-process queues and blobs, for running the whole pipeline in one JVM
+ *   file   - in-process queues, blobs under BLOB_DIR
+ * TRANSPORT_LATENCY_MS adds a delay to every in-process call. An embedding program (the load
+ * generator) can install its own pair before anything else asks for one.
+ */
+public final class Transports {
+
+    private static final String TRANSPORT = System.getenv().getOrDefault("TRANSPORT", "aws");
+    private static final long LATENCY_MS = Long.parseLong(
+            System.getenv().getOrDefault("TRANSPORT_LATENCY_MS", "0"));
+
+    private static volatile MessageQueue queues;
+    private static volatile BlobStore blobs;
+
+    private Transports() {
+    }
+
+    public static String mode() {
+        return TRANSPORT;
+    }
+
+    public static MessageQueue queues() {
+        if (queues == null) {
+            synchronized (Transports.class) {
+                if (queues == null)
+                    queues = "aws".equals(TRANSPORT)
+                            ? new SqsMessageQueue(AwsClients.sqs(), AwsClients.sqsAsync(),
+                                    Long.parseLong(System.getenv().getOrDefault("SQS_LINGER_MS", "20")))
+                            : new InMemoryMessageQueue(LATENCY_MS);
+            }
+        }
+        return queues;
+    }
+
+    public static BlobStore blobs() {
+        if (blobs == null) {
+            synchronized (Transports.class) {
+                if (blobs == null) {
+                    switch (TRANSPORT) {
+                        case "aws":
+                            blobs = new S3BlobStore(AwsClients.s3(), AwsClients.s3Async());
+                            break;
+                        case "file":
+                            blobs = new FileBlobStore(Paths.get(System.getenv().getOrDefault("BLOB_DIR",
+                                    Paths.get(System.getProperty("java.io.tmpdir"), "blobs").toString())), LATENCY_MS);
+                            break;
+                        default:
+                            blobs = new InMemoryBlobStore(LATENCY_MS);
+                    }
+                }
+            }
+        }
+        return blobs;
+    }
+
+    public static synchronized void install(MessageQueue queueTransport, BlobStore blobTransport) {
+        queues = queueTransport;
+        blobs = blobTransport;
+    }
+}
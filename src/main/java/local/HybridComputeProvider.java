@@ -0,0 +1,59 @@
+package local;
+
+import common.ComputeProvider;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Workers for a local run: the in-process ones first, EC2 instances only for what does not
+// fit. Burst instances carry their own role tag, so the manager's autoscaler sees them (and
+// the local workers) as WORKER_ROLE, and everything else in the account only as "not ours",
+// including the fleet of a remote manager.
+class HybridComputeProvider implements ComputeProvider {
+
+    private final ComputeProvider local;
+    private final ComputeProvider burst;
+    private final String burstRole;
+
+    HybridComputeProvider(ComputeProvider local, ComputeProvider burst, String burstRole) {
+        this.local = local;
+        this.burst = burst;
+        this.burstRole = burstRole;
+    }
+
+    @Override
+    public List<Instance> list() {
+        List<Instance> all = new ArrayList<>(local.list());
+        for (Instance i : burst.list()) {
+            all.add(new Instance(i.id, burstRole.equals(i.role) ? WORKER_ROLE : null, i.running, i.launchedAtMillis));
+        }
+        return all;
+    }
+
+    @Override
+    public int launchWorkers(int count) {
+        int launched = local.launchWorkers(count);
+        if (launched < count) {
+            int burstCount = burst.launchWorkers(count - launched);
+            if (burstCount > 0)
+                System.out.println("[Local] Bursting to " + burstCount + " EC2 workers");
+            launched += burstCount;
+        }
+        return launched;
+    }
+
+    @Override
+    public void terminate(List<String> ids) {
+        Set<String> localIds = new HashSet<>();
+        local.list().forEach(i -> localIds.add(i.id));
+        List<String> toLocal = new ArrayList<>();
+        List<String> toBurst = new ArrayList<>();
+        for (String id : ids) {
+            (localIds.contains(id) ? toLocal : toBurst).add(id);
+        }
+        local.terminate(toLocal);
+        burst.terminate(toBurst);
+    }
+}
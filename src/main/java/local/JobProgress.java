@@ -0,0 +1,128 @@
+package local;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Progress events of one job, as the manager sends them to the job's reply queue. Prints the
+// counts and, when given a directory, copies each finished result there as soon as its link
+// arrives (<task>-<analysis>.txt), a few downloads at a time. Links can arrive twice (e.g. after
+// a manager restart); each task is downloaded once.
+class JobProgress {
+
+    private final S3Handler s3Handler;
+    private final Path resultsDir; // null: counts only
+    private final ExecutorService downloads;
+    private final Set<Integer> seen = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger downloaded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    JobProgress(S3Handler s3Handler, Path resultsDir, int threads) {
+        this.s3Handler = s3Handler;
+        if (resultsDir != null) {
+            try {
+                Files.createDirectories(resultsDir);
+            } catch (IOException e) {
+                System.err.println("Cannot create " + resultsDir + ", not streaming results: " + e.getMessage());
+                resultsDir = null;
+            }
+        }
+        this.resultsDir = resultsDir;
+        this.downloads = resultsDir == null ? null : Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "result-download");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static boolean isProgress(String json) {
+        return json.contains("\"progress\":true");
+    }
+
+    void onProgress(String json) {
+        long eta = number(json, "etaSeconds", -1);
+        System.out.println("[Progress] " + number(json, "done", 0) + " done, " + number(json, "failed", 0)
+                + " failed of " + number(json, "total", 0) + (json.contains("\"sealed\":true") ? "" : "+")
+                + (eta >= 0 ? ", about " + eta + " s left" : ""));
+        if (resultsDir == null)
+            return;
+        int at = json.indexOf("\"results\":[");
+        while (at >= 0 && (at = json.indexOf("{\"task\":", at)) >= 0) {
+            int end = json.indexOf('}', at);
+            if (end < 0)
+                break;
+            String result = json.substring(at, end + 1);
+            at = end;
+            int task = (int) number(result, "task", -1);
+            String analysis = extract(result, "analysis").replaceAll("[^A-Za-z0-9_-]", "");
+            String resultS3 = extract(result, "resultS3");
+            if (task < 0 || resultS3.isEmpty() || !seen.add(task))
+                continue;
+            Path target = resultsDir.resolve(task + "-" + analysis + ".txt");
+            downloads.submit(() -> {
+                try {
+                    s3Handler.downloadS3UrlToFile(resultS3, target.toString());
+                    downloaded.incrementAndGet();
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet(); // already logged; the summary still links it
+                }
+            });
+        }
+    }
+
+    // Distinct results whose links arrived so far
+    int resultsSeen() {
+        return seen.size();
+    }
+
+    boolean streaming() {
+        return resultsDir != null;
+    }
+
+    // Waits for the downloads already started
+    void finish() {
+        if (downloads == null)
+            return;
+        downloads.shutdown();
+        try {
+            downloads.awaitTermination(10, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Streamed " + downloaded.get() + " results to " + resultsDir
+                + (failed.get() > 0 ? " (" + failed.get() + " downloads failed)" : ""));
+    }
+
+    static long number(String json, String key, long fallback) {
+        String marker = "\"" + key + "\":";
+        int i = json.indexOf(marker);
+        if (i < 0)
+            return fallback;
+        int j = i + marker.length();
+        int k = j;
+        while (k < json.length() && (Character.isDigit(json.charAt(k)) || json.charAt(k) == '-'))
+            k++;
+        try {
+            return Long.parseLong(json.substring(j, k));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static String extract(String json, String key) {
+        String marker = "\"" + key + "\":\"";
+        int i = json.indexOf(marker);
+        if (i < 0)
+            return "";
+        int j = json.indexOf('"', i + marker.length());
+        if (j < 0)
+            return "";
+        return json.substring(i + marker.length(), j);
+    }
+}
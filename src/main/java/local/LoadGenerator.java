@@ -0,0 +1,207 @@
+package local;
+
+import com.sun.net.httpserver.HttpServer;
+import common.BlobStore;
+import common.InMemoryBlobStore;
+import common.InMemoryMessageQueue;
+import common.MessageQueue;
+import common.MessageQueue.Message;
+import common.Transports;
+import manager.ManagerApplication;
+import worker.InProcessComputeProvider;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test in one JVM: LocalApplication-style clients submit jobs to a manager
+ * whose workers run as threads (InProcessComputeProvider). Queues and blobs are in memory
+ * unless TRANSPORT is set, and input documents are served by a local HTTP server.
+ * Reports task throughput and job latency percentiles (submit -> summary notice).
+ *
+ * Usage: LoadGenerator [jobs] [linesPerJob] [concurrentJobs] [maxWorkers]
+ * LOADGEN_SENTENCES sets sentences per document, LOADGEN_SLOTS parse slots per worker,
+ * LOADGEN_N the manager's tasks-per-worker ratio, TRANSPORT_LATENCY_MS a delay per queue/blob call.
+ */
+public class LoadGenerator {
+
+    private static final String[] ANALYSES = { "POS", "CONSTITUENCY", "DEPENDENCY" };
+    private static final String[] SUBJECTS = { "The manager", "A worker", "The old parser", "Every queue",
+            "The small bucket", "A tired student", "The cluster", "Our client" };
+    private static final String[] VERBS = { "reads", "sends", "parses", "stores", "deletes", "watches",
+            "counts", "finds" };
+    private static final String[] OBJECTS = { "the long document", "a short message", "every sentence",
+            "the summary page", "three results", "a broken link", "the input file", "some tokens" };
+    private static final String[] TAILS = { "", " before noon", " in the morning", " very quickly",
+            " without any errors", " for the second time" };
+
+    public static void main(String[] args) throws Exception {
+        int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int concurrent = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int maxWorkers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int sentences = Integer.parseInt(System.getenv().getOrDefault("LOADGEN_SENTENCES", "20"));
+        int slots = Integer.parseInt(System.getenv().getOrDefault("LOADGEN_SLOTS", "2"));
+        int n = Integer.parseInt(System.getenv().getOrDefault("LOADGEN_N", "10"));
+        long timeoutSeconds = Long.parseLong(System.getenv().getOrDefault("LOADGEN_TIMEOUT_SECONDS", "1800"));
+
+        // In-process by default: a load test must not touch real AWS by accident
+        if (System.getenv("TRANSPORT") == null) {
+            long latency = Long.parseLong(System.getenv().getOrDefault("TRANSPORT_LATENCY_MS", "0"));
+            Transports.install(new InMemoryMessageQueue(latency), new InMemoryBlobStore(latency));
+        }
+        MessageQueue queues = Transports.queues();
+        BlobStore blobs = Transports.blobs();
+
+        String run = "loadgen-" + System.currentTimeMillis();
+        String bucket = "loadgen-bucket";
+        blobs.ensureBucket(bucket);
+        String lmq = queues.ensureQueue(run + "-LMQ", 30);
+        String mwq = queues.ensureQueue(run + "-MWQ", 3600);
+        String wmq = queues.ensureQueue(run + "-WMQ", 30);
+        String maq = queues.ensureQueue(run + "-MAQ", 30);
+
+        // Documents: /doc/<id>.txt, generated from the id so every run serves the same text
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/doc/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            int id = Integer.parseInt(path.substring("/doc/".length(), path.length() - ".txt".length()));
+            byte[] body = document(id, sentences);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+        String docBase = "http://127.0.0.1:" + server.getAddress().getPort() + "/doc/";
+
+        ManagerApplication.configure(new String[] { lmq, mwq, wmq, maq, bucket, String.valueOf(n), "true" });
+        ManagerApplication manager = new ManagerApplication(
+                new InProcessComputeProvider(mwq, wmq, bucket, slots, maxWorkers),
+                Files.createTempDirectory(run + "-journal"));
+        Thread managerThread = new Thread(manager::startManagerLoop, "manager");
+        managerThread.setDaemon(true);
+        managerThread.start();
+
+        System.out.println("[LoadGen] " + jobs + " jobs x " + lines + " lines, " + concurrent + " in flight, up to "
+                + maxWorkers + " workers x " + slots + " slots, transport=" + Transports.mode());
+
+        // Completion notices are matched to jobs by one reader, so no notice waits behind another client
+        Map<String, Long> submittedAt = new ConcurrentHashMap<>();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        Semaphore inFlight = new Semaphore(concurrent);
+        CountDownLatch done = new CountDownLatch(jobs);
+        Thread reader = new Thread(() -> {
+            while (done.getCount() > 0) {
+                for (Message m : queues.receive(maq, 10, 20, 30)) {
+                    String jobId = extract(m.body(), "jobId");
+                    Long start = submittedAt.remove(jobId);
+                    queues.delete(maq, m.receiptHandle());
+                    if (start == null)
+                        continue;
+                    latencies.add(System.currentTimeMillis() - start);
+                    inFlight.release();
+                    done.countDown();
+                }
+            }
+        }, "maq-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long begin = System.currentTimeMillis();
+        for (int j = 0; j < jobs; j++) {
+            inFlight.acquire();
+            StringBuilder input = new StringBuilder();
+            for (int i = 0; i < lines; i++) {
+                input.append(ANALYSES[i % ANALYSES.length]).append('\t')
+                        .append(docBase).append(j * lines + i).append(".txt\n");
+            }
+            String jobId = run + "-job-" + j;
+            String key = "input-tasks/" + jobId;
+            blobs.put(bucket, key, input.toString().getBytes(StandardCharsets.UTF_8), null);
+            submittedAt.put(jobId, System.currentTimeMillis());
+            queues.send(lmq, String.format("{\"jobId\":\"%s\",\"inputS3\":\"%s\",\"outputFile\":\"%s\",\"terminate\":false}",
+                    jobId, BlobStore.url(bucket, key), jobId + ".html")).join();
+        }
+
+        boolean finished = done.await(timeoutSeconds, TimeUnit.SECONDS);
+        long wall = System.currentTimeMillis() - begin;
+
+        queues.send(lmq, "{\"action\":\"terminate\", \"terminate\":true}").join();
+        managerThread.join(TimeUnit.SECONDS.toMillis(60));
+        server.stop(0);
+
+        report(jobs - (int) done.getCount(), jobs, lines, wall, latencies);
+        if (!finished)
+            System.out.println("[LoadGen] Timed out after " + timeoutSeconds + " s with " + done.getCount()
+                    + " jobs unfinished");
+        System.exit(finished ? 0 : 1);
+    }
+
+    private static void report(int finishedJobs, int jobs, int lines, long wallMillis, List<Long> latencies) {
+        List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<>(latencies);
+        }
+        Collections.sort(sorted);
+        long tasks = (long) finishedJobs * lines;
+        System.out.println("[LoadGen] " + finishedJobs + "/" + jobs + " jobs, " + tasks + " tasks in "
+                + wallMillis + " ms = " + String.format("%.1f", tasks * 1000.0 / Math.max(1, wallMillis))
+                + " tasks/s");
+        if (sorted.isEmpty())
+            return;
+        System.out.println("[LoadGen] job latency ms: p50=" + percentile(sorted, 0.50)
+                + " p90=" + percentile(sorted, 0.90) + " p99=" + percentile(sorted, 0.99)
+                + " max=" + sorted.get(sorted.size() - 1));
+    }
+
+    private static long percentile(List<Long> sorted, double q) {
+        int i = (int) Math.ceil(q * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, i)));
+    }
+
+    private static byte[] document(int id, int sentences) {
+        Random random = new Random(id);
+        StringBuilder text = new StringBuilder();
+        for (int s = 0; s < sentences; s++) {
+            text.append(SUBJECTS[random.nextInt(SUBJECTS.length)]).append(' ')
+                    .append(VERBS[random.nextInt(VERBS.length)]).append(' ')
+                    .append(OBJECTS[random.nextInt(OBJECTS.length)])
+                    .append(TAILS[random.nextInt(TAILS.length)]).append(". ");
+            if (s % 5 == 4)
+                text.append("\n\n");
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String extract(String json, String key) {
+        String marker = "\"" + key + "\":\"";
+        int i = json.indexOf(marker);
+        if (i < 0)
+            return "";
+        int j = json.indexOf('"', i + marker.length());
+        if (j < 0)
+            return "";
+        return json.substring(i + marker.length(), j);
+    }
+}
@@ -1,12 +1,26 @@
 package local;
 
+import common.ComputeProvider;
+import common.InMemoryMessageQueue;
+import common.MessageQueue.Message;
+import common.Transports;
+import manager.ManagerApplication;
 import software.amazon.awssdk.services.ec2.model.Instance;
-import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
-import software.amazon.awssdk.services.sqs.model.Message;
+import worker.InProcessComputeProvider;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class LocalApplication {
 
@@ -15,31 +29,58 @@ public class LocalApplication {
     // (S3/GitHub)
     private static final String MANAGER_JAR_URL = "s3://wolfs-amaziah-bucket-123-aws/manager.jar";
 
+    // Jobs up to this many input lines run on this machine (auto mode). LOCAL_MODE is
+    // auto, always or never; LOCAL_BURST lets a local run add EC2 workers when it falls behind.
+    private static final String LOCAL_MODE = System.getenv().getOrDefault("LOCAL_MODE", "auto");
+    private static final int LOCAL_MAX_TASKS = Integer.parseInt(System.getenv().getOrDefault("LOCAL_MAX_TASKS", "100"));
+    private static final boolean LOCAL_BURST = Boolean.parseBoolean(System.getenv().getOrDefault("LOCAL_BURST", "true"));
+
+    // With LOCAL_RESULTS_DIR set, finished results are downloaded there while the job still
+    // runs, LOCAL_DOWNLOAD_THREADS at a time. After the done notice, links still on their way
+    // are waited for up to RESULTS_GRACE_MILLIS.
+    private static final String LOCAL_RESULTS_DIR = System.getenv().getOrDefault("LOCAL_RESULTS_DIR", "");
+    private static final int LOCAL_DOWNLOAD_THREADS = Integer.parseInt(
+            System.getenv().getOrDefault("LOCAL_DOWNLOAD_THREADS", "8"));
+    private static final long RESULTS_GRACE_MILLIS = 60_000;
+
     public static void main(String[] args) {
 
-        if (args.length < 3) {
-            System.err.println("Usage: java -jar yourjar.jar inputFileName outputFileName n [terminate]");
+        // inputFileName1..K outputFileName1..K n [terminate]: one job per input file
+        boolean terminate = args.length > 0 && "terminate".equalsIgnoreCase(args[args.length - 1]);
+        int rest = args.length - (terminate ? 1 : 0);
+        if (rest < 3 || rest % 2 == 0) {
+            System.err.println("Usage: java -jar yourjar.jar inputFileName... outputFileName... n [terminate]");
             return;
         }
-
-        String inputFileName = args[0];
-        String outputFileName = args[1];
-        int n = Integer.parseInt(args[2]);
+        int files = (rest - 1) / 2;
+        List<String> inputFileNames = Arrays.asList(args).subList(0, files);
+        List<String> outputFileNames = Arrays.asList(args).subList(files, 2 * files);
+        int n = Integer.parseInt(args[rest - 1]);
         String nString = String.valueOf(n);
-        boolean terminate = args.length > 3 && "terminate".equalsIgnoreCase(args[3]);
+
+        int tasks = 0;
+        for (String inputFileName : inputFileNames) {
+            int fileTasks = countTasks(inputFileName);
+            if (fileTasks < 0)
+                return;
+            tasks += fileTasks;
+        }
+        if ("always".equalsIgnoreCase(LOCAL_MODE)
+                || ("auto".equalsIgnoreCase(LOCAL_MODE) && tasks <= LOCAL_MAX_TASKS)) {
+            System.out.println(tasks + " tasks: running locally");
+            runLocally(inputFileNames, outputFileNames);
+            return;
+        }
 
         SQSHandler sqsHandler = new SQSHandler();
 
         // Manager -> Worker queue with longer visibility timeout
-        Map<QueueAttributeName, String> workerQueueAttributes = Map.of(
-                QueueAttributeName.VISIBILITY_TIMEOUT, "3600");
-        String mwQueueUrl = sqsHandler.createQueue("Manager_Worker_Queue", workerQueueAttributes);
+        String mwQueueUrl = sqsHandler.createQueue("Manager_Worker_Queue", 3600);
 
-        // Local -> Manager, Worker -> Manager, Manager -> App (new)
-        Map<QueueAttributeName, String> defaultAttributes = Map.of();
-        String lmQueueUrl = sqsHandler.createQueue("Local_Manager_Queue", defaultAttributes);
-        String wmQueueUrl = sqsHandler.createQueue("Worker_Manager_Queue", defaultAttributes);
-        String maQueueUrl = sqsHandler.createQueue("Manager_App_Queue", defaultAttributes);
+        // Local -> Manager, Worker -> Manager, Manager -> App (new), SQS default visibility
+        String lmQueueUrl = sqsHandler.createQueue("Local_Manager_Queue", 30);
+        String wmQueueUrl = sqsHandler.createQueue("Worker_Manager_Queue", 30);
+        String maQueueUrl = sqsHandler.createQueue("Manager_App_Queue", 30);
 
         if (mwQueueUrl == null || lmQueueUrl == null || wmQueueUrl == null || maQueueUrl == null) {
             System.err.println("Failed to initialize all SQS queues. Aborting.");
@@ -56,28 +97,19 @@ public class LocalApplication {
                 nString,
                 String.valueOf(terminate));
 
-        // Upload input file to S3
-        S3Handler s3Handler = new S3Handler("wolfs-amaziah-bucket-123-aws"); // TODO: change bucket name
-        String s3Key = s3Handler.uploadFile(inputFileName, "input-tasks");
-        if (s3Key == null) {
-            System.err.println("Failed to upload input file to S3. Aborting.");
+        // Upload the input files to S3, side by side
+        S3Handler s3Handler = new S3Handler(S3_BUCKET_NAME);
+        List<String> s3Keys = s3Handler.uploadFiles(inputFileNames, "input-tasks");
+        if (s3Keys == null) {
+            System.err.println("Failed to upload input files to S3. Aborting.");
             return;
         }
 
-        // Build the "new job" JSON for Local -> Manager
-        String jobId = "job-" + System.currentTimeMillis();
-        String s3InputUrl = "s3://" + S3_BUCKET_NAME + "/" + s3Key;
-        String newTaskJson = String.format(
-                "{\"jobId\":\"%s\",\"inputS3\":\"%s\",\"outputFile\":\"%s\",\"terminate\":%s}",
-                jobId, s3InputUrl, outputFileName, terminate);
-
-        // Send the task to LMQ
-        boolean sent = sqsHandler.sendMessage(lmQueueUrl, newTaskJson);
-        if (!sent) {
-            System.err.println("Failed to send task message to Manager. Aborting.");
+        // Send one "new job" message per input file to LMQ
+        List<SubmittedJob> jobs = submitJobs(sqsHandler, lmQueueUrl, "", s3Keys, outputFileNames, terminate);
+        if (jobs == null)
             return;
-        }
-        System.out.println("Task submitted. Waiting for summary...");
+        System.out.println(jobs.size() + " task(s) submitted. Waiting for summaries...");
 
         // Ensure a Manager EC2 is running; if not, start one with user-data
         EC2Manager ec2Manager = new EC2Manager();
@@ -89,58 +121,211 @@ public class LocalApplication {
             String managerInstanceId = ec2Manager.startManagerInstance(MANAGER_JAR_URL, managerArguments);
             if (managerInstanceId == null) {
                 System.err.println("Failed to start Manager instance. Aborting.");
+                deleteReplyQueues(sqsHandler, jobs);
                 return;
             }
         }
 
-        // === Wait for Manager -> App "done" message, then download summary ===
-        while (true) {
-            List<Message> msgs = sqsHandler.receive(maQueueUrl, 1, 20, 3600);
-            if (msgs.isEmpty())
-                continue;
-
-            Message m = msgs.get(0);
-            String body = m.body(); // Expect: {"jobId":"...","summaryHtmlS3":"s3://.../summary.html"}
-            String idMarker = "\"jobId\":\"";
-            int idStart = body.indexOf(idMarker);
-            if (idStart < 0) {
-                System.err.println("Bad message format (no jobId): " + body);
-                sqsHandler.delete(maQueueUrl, m.receiptHandle());
-                continue;
+        // === Wait for Manager -> App "done" messages, then download summaries ===
+        awaitJobs(sqsHandler, s3Handler, jobs);
+
+        // If terminate flag was set, send terminate signal to Manager
+        if (terminate) {
+            System.out.println("Sending termination signal to Manager...");
+            String termMsg = "{\"action\":\"terminate\", \"terminate\":true}";
+            sqsHandler.sendMessage(lmQueueUrl, termMsg);
+        }
+    }
+
+    private static final class SubmittedJob {
+        final String jobId;
+        final String replyQueueUrl;
+        final String outputFileName;
+
+        SubmittedJob(String jobId, String replyQueueUrl, String outputFileName) {
+            this.jobId = jobId;
+            this.replyQueueUrl = replyQueueUrl;
+            this.outputFileName = outputFileName;
+        }
+    }
+
+    // Sends the "new job" messages. Each job's done notice comes back on a queue of its own
+    // (<queuePrefix>Manager_App_Queue_<jobId>), so no client has to look at (and hide) another
+    // client's notice. Null, with the reply queues removed again, if any step failed.
+    private static List<SubmittedJob> submitJobs(SQSHandler sqsHandler, String lmQueueUrl, String queuePrefix,
+            List<String> s3Keys, List<String> outputFileNames, boolean terminate) {
+        long now = System.currentTimeMillis();
+        List<SubmittedJob> jobs = new ArrayList<>();
+        for (int i = 0; i < s3Keys.size(); i++) {
+            String jobId = "job-" + now + (s3Keys.size() > 1 ? "-" + i : "");
+            String replyQueueUrl = sqsHandler.createQueue(queuePrefix + "Manager_App_Queue_" + jobId, 30);
+            if (replyQueueUrl == null) {
+                System.err.println("Failed to create the reply queue. Aborting.");
+                deleteReplyQueues(sqsHandler, jobs);
+                return null;
+            }
+            jobs.add(new SubmittedJob(jobId, replyQueueUrl, outputFileNames.get(i)));
+
+            String s3InputUrl = "s3://" + S3_BUCKET_NAME + "/" + s3Keys.get(i);
+            String newTaskJson = String.format(
+                    "{\"jobId\":\"%s\",\"inputS3\":\"%s\",\"outputFile\":\"%s\",\"replyQueue\":\"%s\",\"terminate\":%s}",
+                    jobId, s3InputUrl, outputFileNames.get(i), replyQueueUrl, terminate);
+            if (!sqsHandler.sendMessage(lmQueueUrl, newTaskJson)) {
+                System.err.println("Failed to send task message to Manager. Aborting.");
+                deleteReplyQueues(sqsHandler, jobs);
+                return null;
+            }
+        }
+        return jobs;
+    }
+
+    // Waits for all jobs at once, so every job's progress and results stream as they come
+    private static void awaitJobs(SQSHandler sqsHandler, S3Handler s3Handler, List<SubmittedJob> jobs) {
+        ExecutorService waiters = Executors.newFixedThreadPool(jobs.size());
+        try {
+            List<CompletableFuture<Void>> waits = new ArrayList<>();
+            for (SubmittedJob job : jobs) {
+                waits.add(CompletableFuture.runAsync(() -> awaitSummary(sqsHandler, s3Handler, job.replyQueueUrl,
+                        job.jobId, job.outputFileName), waiters));
+            }
+            for (CompletableFuture<Void> wait : waits) {
+                try {
+                    wait.join();
+                } catch (CompletionException e) {
+                    System.err.println("Waiting for a summary failed: " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            waiters.shutdown();
+            deleteReplyQueues(sqsHandler, jobs);
+        }
+    }
+
+    private static void deleteReplyQueues(SQSHandler sqsHandler, List<SubmittedJob> jobs) {
+        for (SubmittedJob job : jobs) {
+            sqsHandler.deleteQueue(job.replyQueueUrl);
+        }
+    }
+
+    // Blocks until the manager reports this job done, then saves its summary to outputFileName.
+    // replyQueueUrl belongs to this job alone: it carries progress events and the done notice.
+    private static void awaitSummary(SQSHandler sqsHandler, S3Handler s3Handler, String replyQueueUrl, String jobId,
+            String outputFileName) {
+        JobProgress progress = new JobProgress(s3Handler,
+                LOCAL_RESULTS_DIR.isBlank() ? null : Paths.get(LOCAL_RESULTS_DIR, jobId), LOCAL_DOWNLOAD_THREADS);
+
+        long succeeded = -1; // from the done notice
+        long graceEnd = 0;
+        while (succeeded < 0 || (progress.streaming() && progress.resultsSeen() < succeeded
+                && System.currentTimeMillis() < graceEnd)) {
+            List<Message> msgs = sqsHandler.receive(replyQueueUrl, 10, succeeded < 0 ? 20 : 1, 30);
+            for (Message m : msgs) {
+                String body = m.body();
+                if (!body.contains("\"jobId\":\"" + jobId + "\"")) {
+                    System.err.println("Unexpected reply message: " + body);
+                } else if (JobProgress.isProgress(body)) {
+                    progress.onProgress(body);
+                } else if (body.contains("\"error\":\"")) {
+                    // {"jobId":"...","error":"..."}: the manager gave up on the job, no summary follows
+                    int i = body.indexOf("\"error\":\"") + "\"error\":\"".length();
+                    System.err.println("Job " + jobId + " failed: " + body.substring(i, Math.max(i, body.lastIndexOf('"'))));
+                    succeeded = 0;
+                    graceEnd = 0;
+                } else {
+                    // Expect: {"jobId":"...","summaryHtmlS3":"s3://.../summary.html","succeeded":N}
+                    String marker = "\"summaryHtmlS3\":\"";
+                    int i = body.indexOf(marker);
+                    if (i < 0) {
+                        System.err.println("Unexpected reply message: " + body);
+                    } else {
+                        int j = body.indexOf('"', i + marker.length());
+                        String summaryS3 = body.substring(i + marker.length(), j);
+
+                        // Download summary HTML to the user-specified output file
+                        s3Handler.downloadS3UrlToFile(summaryS3, outputFileName);
+                        System.out.println("Saved summary to " + outputFileName);
+                        succeeded = Math.max(0, JobProgress.number(body, "succeeded", 0));
+                        graceEnd = System.currentTimeMillis() + RESULTS_GRACE_MILLIS;
+                    }
+                }
+                sqsHandler.delete(replyQueueUrl, m.receiptHandle());
             }
+        }
+        progress.finish();
+    }
 
-            int idEnd = body.indexOf('"', idStart + idMarker.length());
-            String msgJobId = body.substring(idStart + idMarker.length(), idEnd);
+    // Manager and one worker in this JVM, on queues of their own so no other manager picks the
+    // job up. Results and the summary go to the same bucket and keys as on the distributed path,
+    // so the output is the same HTML. With LOCAL_BURST the manager's autoscaler may add EC2
+    // workers (on these queues) once the backlog outgrows the local one.
+    private static void runLocally(List<String> inputFileNames, List<String> outputFileNames) {
+        if (!LOCAL_BURST)
+            Transports.install(new InMemoryMessageQueue(0), Transports.blobs());
+        SQSHandler sqsHandler = new SQSHandler();
+        String prefix = "Local_" + System.currentTimeMillis() + "_";
+        String mwQueueUrl = sqsHandler.createQueue(prefix + "Manager_Worker_Queue", 3600);
+        String lmQueueUrl = sqsHandler.createQueue(prefix + "Local_Manager_Queue", 30);
+        String wmQueueUrl = sqsHandler.createQueue(prefix + "Worker_Manager_Queue", 30);
+        String maQueueUrl = sqsHandler.createQueue(prefix + "Manager_App_Queue", 30);
 
-            // is this message for OUR job?
-            if (!msgJobId.equals(jobId)) {
-                System.out.println("Ignoring message for different Job: " + msgJobId + " (I am: " + jobId + ")");
-                continue;
+        try {
+            if (mwQueueUrl == null || lmQueueUrl == null || wmQueueUrl == null || maQueueUrl == null) {
+                System.err.println("Failed to initialize all SQS queues. Aborting.");
+                return;
+            }
+            S3Handler s3Handler = new S3Handler(S3_BUCKET_NAME);
+            List<String> s3Keys = s3Handler.uploadFiles(inputFileNames, "input-tasks");
+            if (s3Keys == null) {
+                System.err.println("Failed to upload input files to S3. Aborting.");
+                return;
             }
 
-            String marker = "\"summaryHtmlS3\":\"";
-            int i = body.indexOf(marker);
-            if (i < 0) {
-                System.err.println("Unexpected MAQ message: " + body);
-                sqsHandler.delete(maQueueUrl, m.receiptHandle());
-                continue;
+            // N = LOCAL_MAX_TASKS: a burst adds at most one worker per LOCAL_MAX_TASKS of backlog
+            ManagerApplication.configure(new String[] { lmQueueUrl, mwQueueUrl, wmQueueUrl, maQueueUrl,
+                    S3_BUCKET_NAME, String.valueOf(LOCAL_MAX_TASKS), "true" });
+            int slots = Integer.parseInt(System.getenv().getOrDefault(
+                    "WORKER_SLOTS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            ComputeProvider workers = new InProcessComputeProvider(mwQueueUrl, wmQueueUrl, S3_BUCKET_NAME, slots, 1);
+            if (LOCAL_BURST) {
+                String burstRole = prefix + "Worker";
+                workers = new HybridComputeProvider(workers, ManagerApplication.ec2Workers(burstRole), burstRole);
             }
-            int j = body.indexOf('"', i + marker.length());
-            String summaryS3 = body.substring(i + marker.length(), j);
-
-            // Download summary HTML to the user-specified output file
-            s3Handler.downloadS3UrlToFile(summaryS3, outputFileName);
-            sqsHandler.delete(maQueueUrl, m.receiptHandle());
-            System.out.println("Saved summary to " + outputFileName);
-
-            // If terminate flag was set, send terminate signal to Manager
-            if (terminate) {
-                System.out.println("Sending termination signal to Manager...");
-                String termMsg = "{\"action\":\"terminate\", \"terminate\":true}";
-                sqsHandler.sendMessage(lmQueueUrl, termMsg);
+            ManagerApplication manager = new ManagerApplication(workers, Files.createTempDirectory(prefix + "journal"));
+            Thread managerThread = new Thread(manager::startManagerLoop, "local-manager");
+            managerThread.start();
+
+            List<SubmittedJob> jobs = submitJobs(sqsHandler, lmQueueUrl, prefix, s3Keys, outputFileNames, false);
+            if (jobs != null)
+                awaitJobs(sqsHandler, s3Handler, jobs);
+
+            // The local manager stops its workers (burst ones included) on the way out
+            sqsHandler.sendMessage(lmQueueUrl, "{\"action\":\"terminate\", \"terminate\":true}");
+            managerThread.join();
+        } catch (IOException e) {
+            System.err.println("Cannot create the local manager journal: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (String url : new String[] { lmQueueUrl, mwQueueUrl, wmQueueUrl, maQueueUrl }) {
+                if (url != null)
+                    sqsHandler.deleteQueue(url);
             }
+        }
+    }
 
-            break;
+    // Input lines that become tasks (ANALYSIS <tab> URL), -1 if the file cannot be read
+    private static int countTasks(String inputFileName) {
+        int tasks = 0;
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(inputFileName), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.indexOf('\t') > 0)
+                    tasks++;
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot read input file " + inputFileName + ": " + e.getMessage());
+            return -1;
         }
+        return tasks;
     }
 }
@@ -0,0 +1,206 @@
+package local;
+
+import common.BlobStore;
+import common.MultipartBlobStore;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Large objects move in parts, `concurrency` at a time, so one transfer is not held to what a
+// single connection gets. An upload reads its file once, front to back, and hands each part to
+// the pool; a download fetches byte ranges straight into their place in the file.
+//
+// Checks: S3 verifies each uploaded part's CRC32. A download is compared with the object's MD5
+// when the store knows it, else with the <key>.sha256 that multipart uploads leave behind, and
+// only replaces the target file once it matches.
+class ParallelTransfer {
+
+    private static final int MIN_PART_BYTES = 5 * 1024 * 1024; // S3's minimum for all parts but the last
+    private static final String CHECKSUM_SUFFIX = ".sha256";
+
+    private final BlobStore blobs;
+    private final int partBytes;
+    private final ExecutorService pool;
+    private final Semaphore buffered; // parts read but not yet uploaded, over all uploads
+
+    ParallelTransfer(BlobStore blobs, int partBytes, int concurrency) {
+        this.blobs = blobs;
+        this.partBytes = Math.max(MIN_PART_BYTES, partBytes);
+        this.pool = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "transfer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.buffered = new Semaphore(concurrency);
+    }
+
+    void upload(Path file, String bucket, String key) throws IOException {
+        long size = Files.size(file);
+        if (size <= partBytes || !(blobs instanceof MultipartBlobStore)) {
+            blobs.put(bucket, key, file); // one request; the SDK checks its MD5
+            return;
+        }
+        MultipartBlobStore multipart = (MultipartBlobStore) blobs;
+        String uploadId = multipart.startMultipart(bucket, key);
+
+        MessageDigest sha = digest("SHA-256");
+        List<CompletableFuture<String>> parts = new ArrayList<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int number = 1; !failed.get(); number++) {
+                byte[] data = in.readNBytes(partBytes);
+                if (data.length == 0)
+                    break;
+                sha.update(data);
+                buffered.acquire();
+                int partNumber = number;
+                parts.add(CompletableFuture.supplyAsync(() -> multipart.putPart(bucket, key, uploadId, partNumber, data), pool)
+                        .whenComplete((tag, e) -> {
+                            buffered.release();
+                            if (e != null)
+                                failed.set(true);
+                        }));
+                if (data.length < partBytes)
+                    break;
+            }
+            List<String> tags = new ArrayList<>();
+            for (CompletableFuture<String> part : parts) {
+                tags.add(part.join());
+            }
+            multipart.completeMultipart(bucket, key, uploadId, tags);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(multipart, bucket, key, uploadId, parts);
+            throw new InterruptedIOException("Upload of " + file + " interrupted");
+        } catch (IOException | RuntimeException e) {
+            abort(multipart, bucket, key, uploadId, parts);
+            throw unwrap(e);
+        }
+        blobs.put(bucket, key + CHECKSUM_SUFFIX, HexFormat.of().formatHex(sha.digest()).getBytes(StandardCharsets.UTF_8),
+                "text/plain");
+        System.out.println("Uploaded " + file + " in " + parts.size() + " parts");
+    }
+
+    // Parts still in flight would otherwise land after the abort and keep costing storage
+    private static void abort(MultipartBlobStore multipart, String bucket, String key, String uploadId,
+            List<CompletableFuture<String>> parts) {
+        try {
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+            multipart.abortMultipart(bucket, key, uploadId);
+        } catch (RuntimeException e) {
+            System.err.println("Could not abort upload of " + key + ": " + e.getMessage());
+        }
+    }
+
+    void download(String bucket, String key, Path target) throws IOException {
+        BlobStore.Stat stat = blobs.stat(bucket, key);
+        if (stat == null)
+            throw new FileNotFoundException(BlobStore.url(bucket, key));
+        Path absolute = target.toAbsolutePath();
+        Path tmp = Files.createTempFile(absolute.getParent(), ".download-", ".tmp");
+        try {
+            if (stat.size <= partBytes) {
+                try (InputStream in = blobs.open(bucket, key)) {
+                    if (in == null)
+                        throw new FileNotFoundException(BlobStore.url(bucket, key));
+                    Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } else {
+                downloadRanges(bucket, key, stat.size, tmp);
+            }
+            if (Files.size(tmp) != stat.size)
+                throw new IOException("Expected " + stat.size + " bytes of " + key + ", got " + Files.size(tmp));
+            verify(bucket, key, stat, tmp);
+            Files.move(tmp, absolute, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void downloadRanges(String bucket, String key, long size, Path tmp) throws IOException {
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            List<CompletableFuture<Void>> ranges = new ArrayList<>();
+            for (long from = 0; from < size; from += partBytes) {
+                long start = from;
+                int length = (int) Math.min(partBytes, size - from);
+                ranges.add(CompletableFuture.runAsync(() -> {
+                    byte[] data = blobs.readRange(bucket, key, start, length);
+                    if (data == null || data.length != length)
+                        throw new UncheckedIOException(new IOException("Short read of " + key + " at " + start));
+                    try {
+                        ByteBuffer buf = ByteBuffer.wrap(data);
+                        while (buf.hasRemaining()) {
+                            out.write(buf, start + buf.position());
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, pool));
+            }
+            CompletableFuture.allOf(ranges.toArray(new CompletableFuture[0])).join();
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private void verify(String bucket, String key, BlobStore.Stat stat, Path file) throws IOException {
+        String expected = stat.md5;
+        String algorithm = "MD5";
+        if (expected == null) {
+            byte[] sidecar = blobs.read(bucket, key + CHECKSUM_SUFFIX);
+            if (sidecar == null)
+                return; // nothing to compare with; the size matched
+            expected = new String(sidecar, StandardCharsets.UTF_8).trim();
+            algorithm = "SHA-256";
+        }
+        MessageDigest digest = digest(algorithm);
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+        }
+        String actual = HexFormat.of().formatHex(digest.digest());
+        if (!actual.equalsIgnoreCase(expected))
+            throw new IOException(algorithm + " mismatch for " + key + ": expected " + expected + ", got " + actual);
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE has MD5 and SHA-256
+        }
+    }
+
+    private static IOException unwrap(Exception e) {
+        Throwable t = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (t instanceof UncheckedIOException)
+            return ((UncheckedIOException) t).getCause();
+        if (t instanceof IOException)
+            return (IOException) t;
+        return new IOException(t.getMessage(), t);
+    }
+}
@@ -1,34 +1,41 @@
 package local;
 
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.BucketAlreadyOwnedByYouException;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.core.sync.ResponseTransformer;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import common.BlobStore;
+import common.Transports;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class S3Handler {
-    private final S3Client s3;
+    // Files above one part move as TRANSFER_PART_MB parts, TRANSFER_CONCURRENCY at a time
+    private static final int TRANSFER_PART_MB = Integer.parseInt(System.getenv().getOrDefault("TRANSFER_PART_MB", "8"));
+    private static final int TRANSFER_CONCURRENCY = Integer.parseInt(
+            System.getenv().getOrDefault("TRANSFER_CONCURRENCY", "8"));
+
+    private static final AtomicInteger uploads = new AtomicInteger(); // keeps same-named files apart
+
+    private final BlobStore blobs; // S3, or an in-process store when TRANSPORT says so
     private final String bucketName;
-    private final Region region = Region.US_EAST_1;
+    private final ParallelTransfer transfer;
 
     public S3Handler(String bucketName) {
         this.bucketName = bucketName;
-        this.s3 = S3Client.builder().region(region).build();
+        this.blobs = Transports.blobs();
+        this.transfer = new ParallelTransfer(blobs, TRANSFER_PART_MB * 1024 * 1024, TRANSFER_CONCURRENCY);
         ensureBucketExists();
     }
 
     // Uploads a local file to S3 under a unique key
     private void ensureBucketExists() {
         try {
-            s3.createBucket(CreateBucketRequest.builder().bucket(bucketName).build());
-            System.out.println("S3 Bucket created successfully: " + bucketName);
-        } catch (BucketAlreadyOwnedByYouException e) {
-            System.out.println("S3 Bucket already exists and is owned by you: " + bucketName);
+            blobs.ensureBucket(bucketName);
         } catch (Exception e) {
             System.err.println("Critical Error: Failed to create or verify S3 Bucket: " + e.getMessage());
         }
@@ -36,14 +43,11 @@ public class S3Handler {
 
     // Uploads a local file to S3 under a unique key
     public String uploadFile(String inputFilePath, String prefix) {
-        String keyName = prefix + "/" + new File(inputFilePath).getName() + "-" + System.currentTimeMillis();
+        String keyName = prefix + "/" + new File(inputFilePath).getName() + "-" + System.currentTimeMillis()
+                + "-" + uploads.incrementAndGet();
 
         try {
-            s3.putObject(PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(keyName)
-                    .build(),
-                    RequestBody.fromFile(new File(inputFilePath))); // מעלה את תוכן הקובץ
+            transfer.upload(Paths.get(inputFilePath), bucketName, keyName); // מעלה את תוכן הקובץ
 
             System.out.println("Input file uploaded to S3 key: " + keyName);
             return keyName;
@@ -54,23 +58,38 @@ public class S3Handler {
         }
     }
 
+    // Uploads the files side by side; keys in the same order, or null if any upload failed
+    public List<String> uploadFiles(List<String> inputFilePaths, String prefix) {
+        ExecutorService files = Executors.newFixedThreadPool(Math.max(1, inputFilePaths.size()));
+        try {
+            List<CompletableFuture<String>> keys = new ArrayList<>();
+            for (String path : inputFilePaths) {
+                keys.add(CompletableFuture.supplyAsync(() -> uploadFile(path, prefix), files));
+            }
+            List<String> uploaded = new ArrayList<>();
+            for (CompletableFuture<String> key : keys) {
+                uploaded.add(key.join());
+            }
+            return uploaded.contains(null) ? null : uploaded;
+        } finally {
+            files.shutdown();
+        }
+    }
+
     public String getBucketName() {
         return bucketName;
     }
 
     public void downloadS3UrlToFile(String s3Url, String localPath) {
         // expects "s3://bucket/key..."
-        if (!s3Url.startsWith("s3://"))
-            throw new IllegalArgumentException("Bad S3 URL: " + s3Url);
-        String without = s3Url.substring("s3://".length());
-        int slash = without.indexOf('/');
-        String b = without.substring(0, slash);
-        String k = without.substring(slash + 1);
+        String[] bk = BlobStore.splitUrl(s3Url);
         try {
-            s3.getObject(GetObjectRequest.builder().bucket(b).key(k).build(),
-                    ResponseTransformer.toFile(Paths.get(localPath)));
+            transfer.download(bk[0], bk[1], Paths.get(localPath));
             System.out.println("Downloaded " + s3Url + " -> " + localPath);
-        } catch (Exception e) {
+        } catch (IOException e) {
+            System.err.println("Error downloading " + s3Url + ": " + e.getMessage());
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
             System.err.println("Error downloading " + s3Url + ": " + e.getMessage());
             throw e;
         }
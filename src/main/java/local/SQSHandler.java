@@ -1,47 +1,40 @@
 package local;
 
-import software.amazon.awssdk.services.sqs.model.*;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.sqs.SqsClient;
-import java.util.Map;
+import common.MessageQueue;
+import common.MessageQueue.Message;
+import common.Transports;
+
 import java.util.List;
 
 public class SQSHandler {
-    private final SqsClient sqs;
-    private final Region region = Region.US_EAST_1; // Consistent region setting
+    private final MessageQueue queues; // SQS, or in-process queues when TRANSPORT says so
 
     public SQSHandler() {
-        this.sqs = SqsClient.builder().region(region).build();
+        this.queues = Transports.queues();
     }
 
-    public String createQueue(String queueName, Map<QueueAttributeName, String> attributes) {
+    public String createQueue(String queueName, int visibilityTimeoutSeconds) {
         // Creates the queue if it doesn't exist, and returns its URL
         try {
-            CreateQueueRequest createRequest = CreateQueueRequest.builder()
-                    .queueName(queueName)
-                    .attributes(attributes)
-                    .build();
-            sqs.createQueue(createRequest);
-
-            // Fetch the queue URL
-            GetQueueUrlResponse getUrlResponse = sqs
-                    .getQueueUrl(GetQueueUrlRequest.builder().queueName(queueName).build());
-            return getUrlResponse.queueUrl();
-
+            return queues.ensureQueue(queueName, visibilityTimeoutSeconds);
         } catch (Exception e) {
             System.err.println("Error creating or getting queue URL: " + e.getMessage());
             return null;
         }
     }
 
+    public void deleteQueue(String queueUrl) {
+        try {
+            queues.deleteQueue(queueUrl);
+        } catch (Exception e) {
+            System.err.println("Error deleting queue " + queueUrl + ": " + e.getMessage());
+        }
+    }
+
     public boolean sendMessage(String queueUrl, String messageBody) {
-        // Sends a message to the specified SQS queue
+        // Sends a message to the specified queue and waits until it is accepted
         try {
-            SendMessageRequest sendMsgRequest = SendMessageRequest.builder()
-                    .queueUrl(queueUrl)
-                    .messageBody(messageBody)
-                    .build();
-            sqs.sendMessage(sendMsgRequest);
+            queues.send(queueUrl, messageBody).join();
             System.out.println("Message successfully sent to SQS queue: " + queueUrl);
             return true;
         } catch (Exception e) {
@@ -51,28 +44,15 @@ public class SQSHandler {
     }
 
     public List<Message> receive(String queueUrl, int maxMessages, int waitSeconds, int visibilityTimeout) {
-        ReceiveMessageRequest req = ReceiveMessageRequest.builder()
-                .queueUrl(queueUrl)
-                .maxNumberOfMessages(maxMessages)
-                .waitTimeSeconds(waitSeconds) // long polling
-                .visibilityTimeout(visibilityTimeout)
-                .build();
-        return sqs.receiveMessage(req).messages();
+        return queues.receive(queueUrl, maxMessages, waitSeconds, visibilityTimeout); // long polling
     }
 
     public void delete(String queueUrl, String receiptHandle) {
-        sqs.deleteMessage(DeleteMessageRequest.builder()
-                .queueUrl(queueUrl)
-                .receiptHandle(receiptHandle)
-                .build());
+        queues.delete(queueUrl, receiptHandle).join();
     }
 
     public int getApproximateMessageCount(String queueUrl) {
-        GetQueueAttributesResponse attrs = sqs.getQueueAttributes(GetQueueAttributesRequest.builder()
-                .queueUrl(queueUrl)
-                .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
-                .build());
-        return Integer.parseInt(attrs.attributes().get(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES));
+        return queues.depth(queueUrl).visible;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,176 @@
+package manager;
+
+import common.ComputeProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic worker fleet controller. Each tick it reads the MWQ backlog and in-flight count,
+ * measures how many tasks a running worker finishes per second, and sizes the fleet so the
+ * outstanding work drains within a target time, counting what the current fleet (including
+ * instances still booting) gets done before a new instance could start helping.
+ *
+ * The N-tasks-per-worker ratio from LocalApplication stays an upper bound, the account-wide
+ * instance cap is respected, and workers are terminated once no task has been queued or in
+ * flight for a grace period. Only whole-fleet idleness drains workers: SQS does not say which
+ * worker is busy, and killing a busy one would stall its tasks until their visibility timeout.
+ */
+class Autoscaler {
+
+    static final class Load {
+        final int backlog; // tasks visible on MWQ
+        final int inFlight; // tasks received by a worker, not yet deleted
+
+        Load(int backlog, int inFlight) {
+            this.backlog = backlog;
+            this.inFlight = inFlight;
+        }
+    }
+
+    interface Signals {
+        Load load();
+
+        // Tasks finished so far, only ever grows
+        long completed();
+    }
+
+    private static final long PERIOD_SECONDS = Long.parseLong(
+            System.getenv().getOrDefault("AUTOSCALE_PERIOD_SECONDS", "15"));
+    private static final long BOOT_MILLIS = Long.parseLong(
+            System.getenv().getOrDefault("WORKER_BOOT_SECONDS", "180")) * 1000;
+    private static final long TARGET_MILLIS = Long.parseLong(
+            System.getenv().getOrDefault("AUTOSCALE_TARGET_SECONDS", "600")) * 1000;
+    private static final long IDLE_MILLIS = Long.parseLong(
+            System.getenv().getOrDefault("AUTOSCALE_IDLE_SECONDS", "120")) * 1000;
+
+    private final ComputeProvider compute;
+    private final Signals signals;
+    private final String workerRole;
+    private final int tasksPerWorker;
+    private final int maxInstances;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "autoscaler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private double perWorkerRate = 0; // tasks/s per running worker, smoothed; 0 until measured
+    private long lastCompleted = -1;
+    private long lastSampleAt;
+    private long idleSince = -1;
+
+    Autoscaler(ComputeProvider compute, Signals signals, String workerRole, int tasksPerWorker, int maxInstances) {
+        this.compute = compute;
+        this.signals = signals;
+        this.workerRole = workerRole;
+        this.tasksPerWorker = Math.max(1, tasksPerWorker);
+        this.maxInstances = maxInstances;
+    }
+
+    void start() {
+        timer.scheduleWithFixedDelay(this::tick, 0, PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Run a tick now, e.g. when a job's first tasks were just queued
+    void nudge() {
+        timer.execute(this::tick);
+    }
+
+    void stop() {
+        timer.shutdownNow();
+    }
+
+    synchronized void tick() {
+        try {
+            control(System.currentTimeMillis());
+        } catch (Exception e) {
+            System.err.println("[Autoscaler] tick failed: " + e.getMessage());
+        }
+    }
+
+    private void control(long now) {
+        List<ComputeProvider.Instance> all = compute.list();
+        List<ComputeProvider.Instance> workers = new ArrayList<>();
+        for (ComputeProvider.Instance i : all) {
+            if (workerRole.equals(i.role))
+                workers.add(i);
+        }
+        int running = (int) workers.stream().filter(i -> i.running).count();
+
+        Load load = signals.load();
+        int work = load.backlog + load.inFlight;
+        measure(now, running, work);
+
+        int desired = desiredWorkers(now, work, workers, running);
+        int cap = maxInstances - (all.size() - workers.size()); // room left next to the manager etc.
+        desired = Math.min(desired, Math.max(0, cap));
+
+        if (desired > workers.size()) {
+            idleSince = -1;
+            int launched = compute.launchWorkers(desired - workers.size());
+            System.out.println("[Autoscaler] backlog=" + load.backlog + " inFlight=" + load.inFlight
+                    + " rate/worker=" + String.format("%.2f", perWorkerRate) + "/s workers=" + workers.size()
+                    + " (" + running + " running) -> launching " + launched);
+            return;
+        }
+        if (work > 0 || workers.isEmpty()) {
+            idleSince = -1;
+            return;
+        }
+        // Nothing queued or in flight: every worker is idle
+        if (idleSince < 0)
+            idleSince = now;
+        if (now - idleSince >= IDLE_MILLIS) {
+            List<String> ids = new ArrayList<>();
+            workers.forEach(i -> ids.add(i.id));
+            System.out.println("[Autoscaler] idle for " + (now - idleSince) / 1000 + "s, draining "
+                    + ids.size() + " workers");
+            compute.terminate(ids);
+            idleSince = -1;
+        }
+    }
+
+    // Smoothed tasks/s per running worker, sampled only while there is work to do
+    private void measure(long now, int running, int work) {
+        long completed = signals.completed();
+        if (lastCompleted >= 0 && running > 0 && work > 0 && completed > lastCompleted) {
+            double seconds = (now - lastSampleAt) / 1000.0;
+            if (seconds > 0) {
+                double sample = (completed - lastCompleted) / seconds / running;
+                perWorkerRate = perWorkerRate == 0 ? sample : 0.7 * perWorkerRate + 0.3 * sample;
+            }
+        }
+        lastCompleted = completed;
+        lastSampleAt = now;
+    }
+
+    private int desiredWorkers(long now, int work, List<ComputeProvider.Instance> workers, int running) {
+        if (work == 0)
+            return 0;
+        int byRatio = (work + tasksPerWorker - 1) / tasksPerWorker;
+        if (perWorkerRate <= 0)
+            return Math.max(workers.size(), byRatio); // nothing measured yet: plain N-per-worker rule
+
+        // What the current fleet finishes within the target: running workers the whole time,
+        // booting ones from when they are expected up
+        double target = TARGET_MILLIS / 1000.0;
+        double capacity = running * perWorkerRate * target;
+        for (ComputeProvider.Instance i : workers) {
+            if (!i.running) {
+                double upIn = Math.max(0, (BOOT_MILLIS - (now - i.launchedAtMillis)) / 1000.0);
+                capacity += perWorkerRate * Math.max(0, target - upIn);
+            }
+        }
+        if (capacity >= work)
+            return workers.size();
+
+        // A new worker only helps after booting; never count on less than a quarter of the target
+        double perNewWorker = perWorkerRate * Math.max(target - BOOT_MILLIS / 1000.0, target / 4);
+        int extra = (int) Math.ceil((work - capacity) / perNewWorker);
+        return Math.min(workers.size() + extra, Math.max(byRatio, workers.size()));
+    }
+}
@@ -0,0 +1,154 @@
+package manager;
+
+import common.ComputeProvider;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.Filter;
+import software.amazon.awssdk.services.ec2.model.IamInstanceProfileSpecification;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.InstanceType;
+import software.amazon.awssdk.services.ec2.model.ResourceType;
+import software.amazon.awssdk.services.ec2.model.RunInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.Tag;
+import software.amazon.awssdk.services.ec2.model.TagSpecification;
+import software.amazon.awssdk.services.ec2.model.TerminateInstancesRequest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+// Workers as EC2 instances tagged Role=<role> (Worker for the manager's own fleet). One
+// describeInstances call lists the whole account (workers and everything else, for the
+// instance cap) and is reused for a few seconds.
+class Ec2ComputeProvider implements ComputeProvider {
+
+    static final String WORKER_TAG_KEY = "Role";
+
+    private static final String INSTANCE_PROFILE_NAME = "LabInstanceProfile";
+    private static final String AMI_ID = "ami-0fa3fe0fa7920f68e";
+    private static final long DESCRIBE_CACHE_MS = Long.parseLong(
+            System.getenv().getOrDefault("DESCRIBE_CACHE_SECONDS", "10")) * 1000;
+
+    private final Ec2Client ec2;
+    private final String workerJarUrl;
+    private final String workerClassName;
+    private final String workerArguments;
+    private final String role; // Role tag of the workers this provider launches
+
+    private List<Instance> cached;
+    private long cachedAt;
+
+    Ec2ComputeProvider(Ec2Client ec2, String workerJarUrl, String workerClassName, String workerArguments,
+            String role) {
+        this.ec2 = ec2;
+        this.role = role;
+        this.workerJarUrl = workerJarUrl;
+        this.workerClassName = workerClassName;
+        this.workerArguments = workerArguments;
+    }
+
+    @Override
+    public synchronized List<Instance> list() {
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cachedAt < DESCRIBE_CACHE_MS)
+            return cached;
+
+        Filter liveFilter = Filter.builder()
+                .name("instance-state-name")
+                .values(InstanceStateName.RUNNING.toString(), InstanceStateName.PENDING.toString())
+                .build();
+        List<Instance> live = new ArrayList<>();
+        ec2.describeInstances(DescribeInstancesRequest.builder().filters(liveFilter).build()).reservations()
+                .forEach(reservation -> reservation.instances().forEach(instance -> {
+                    String role = instance.tags().stream()
+                            .filter(t -> WORKER_TAG_KEY.equals(t.key()))
+                            .map(Tag::value)
+                            .findFirst().orElse(null);
+                    live.add(new Instance(instance.instanceId(), role,
+                            instance.state().name() == InstanceStateName.RUNNING,
+                            instance.launchTime() == null ? now : instance.launchTime().toEpochMilli()));
+                }));
+        cached = live;
+        cachedAt = now;
+        return live;
+    }
+
+    @Override
+    public synchronized int launchWorkers(int count) {
+        if (count <= 0)
+            return 0;
+        String userDataScript = String.join("\n",
+                "#!/bin/bash",
+                "set -euxo pipefail",
+                "exec > /var/log/worker-boot.log 2>&1",
+                "yum update -y",
+                "yum install -y java-17-amazon-corretto-headless awscli jq",
+                "aws configure set default.region us-east-1",
+                (workerJarUrl.startsWith("s3://")
+                        ? "aws s3 cp \"" + workerJarUrl + "\" /home/ec2-user/app.jar"
+                        : "curl -L -o /home/ec2-user/app.jar \"" + workerJarUrl + "\""),
+                "chown ec2-user:ec2-user /home/ec2-user/app.jar",
+                // Run Worker
+                "nohup java -Xmx1500m -cp /home/ec2-user/app.jar " + workerClassName + " " + workerArguments
+                        + " > /var/log/worker.log 2>&1 &");
+
+        String userDataBase64 = Base64.getEncoder().encodeToString(userDataScript.getBytes(StandardCharsets.UTF_8));
+
+        RunInstancesRequest runRequest = RunInstancesRequest.builder()
+                .instanceType(InstanceType.T2_SMALL)
+                .imageId(AMI_ID)
+                .maxCount(count)
+                .minCount(count)
+                .userData(userDataBase64)
+                .iamInstanceProfile(IamInstanceProfileSpecification.builder().name(INSTANCE_PROFILE_NAME).build())
+                .tagSpecifications(TagSpecification.builder()
+                        .resourceType(ResourceType.INSTANCE)
+                        .tags(Tag.builder().key(WORKER_TAG_KEY).value(role).build())
+                        .build())
+                .build();
+
+        ec2.runInstances(runRequest);
+        cached = null; // next list() must see the new instances
+        return count;
+    }
+
+    @Override
+    public synchronized void terminate(List<String> ids) {
+        if (ids.isEmpty())
+            return;
+        ec2.terminateInstances(TerminateInstancesRequest.builder().instanceIds(ids).build());
+        cached = null;
+    }
+
+    // The manager's own instance id, from the instance metadata service (IMDSv2)
+    @Override
+    public String selfId() {
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+
+            HttpRequest tokenReq = HttpRequest.newBuilder()
+                    .uri(URI.create("http://169.254.169.254/latest/api/token"))
+                    .header("X-aws-ec2-metadata-token-ttl-seconds", "21600")
+                    .method("PUT", HttpRequest.BodyPublishers.noBody())
+                    .build();
+
+            String token = client.send(tokenReq, HttpResponse.BodyHandlers.ofString()).body();
+            HttpRequest idReq = HttpRequest.newBuilder()
+                    .uri(URI.create("http://169.254.169.254/latest/meta-data/instance-id"))
+                    .header("X-aws-ec2-metadata-token", token)
+                    .GET()
+                    .build();
+
+            return client.send(idReq, HttpResponse.BodyHandlers.ofString()).body();
+
+        } catch (Exception e) {
+            System.err.println("Failed to retrieve own instance ID via IMDSv2: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -1,47 +1,138 @@
 package manager;
 
-import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import common.BlobStore;
+import common.Transports;
+
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 class InputDownloader {
 
-    static List<String> readAllLinesFromS3(String s3Url) {
-        if (!s3Url.startsWith("s3://")) {
-            throw new IllegalArgumentException("Bad S3 URL: " + s3Url);
+    // Bytes fetched per ranged read of the input
+    private static final int CHUNK_BYTES = 1024 * 1024;
+    // Tries per chunk before the input counts as unreadable
+    private static final int READ_ATTEMPTS = 4;
+
+    // Reads the ANALYSIS \t URL lines of an input file off the blob store a chunk at a time, so
+    // tasks can be dispatched while the rest of the object is still unread. Each chunk is its
+    // own short ranged GET: no connection sits idle while a window is probed and dispatched,
+    // and a failed read is retried from the same byte offset. Blank and malformed lines are
+    // skipped. The caller must close it.
+    static InputLines open(String s3Url) {
+        String[] bk = BlobStore.splitUrl(s3Url);
+        BlobStore blobs = Transports.blobs();
+        BlobStore.Stat stat = blobs.stat(bk[0], bk[1]);
+        if (stat == null)
+            throw new IllegalArgumentException("No input file at " + s3Url);
+        return new InputLines(blobs, bk[0], bk[1], stat.size);
+    }
+
+    // Yields {analysis, url} pairs
+    static final class InputLines implements Iterator<String[]>, AutoCloseable {
+        private final BlobStore blobs;
+        private final String bucket;
+        private final String key;
+        private final long size;
+        private long offset; // next byte to fetch
+        private byte[] buf = new byte[0]; // fetched bytes not yet returned as lines, from pos on
+        private int pos;
+        private int scan; // no line break in buf before this index
+        private String[] next;
+        private boolean eof;
+
+        private InputLines(BlobStore blobs, String bucket, String key, long size) {
+            this.blobs = blobs;
+            this.bucket = bucket;
+            this.key = key;
+            this.size = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !eof) {
+                String line = readLine();
+                if (line == null) {
+                    eof = true;
+                    break;
+                }
+                int tab = line.indexOf('\t');
+                if (tab < 0)
+                    continue; // skip malformed
+                String analysis = line.substring(0, tab).trim();
+                String url = line.substring(tab + 1).trim();
+                if (!analysis.isEmpty() && !url.isEmpty())
+                    next = new String[] { analysis, url };
+            }
+            return next != null;
+        }
+
+        @Override
+        public String[] next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            String[] pair = next;
+            next = null;
+            return pair;
         }
-        String rest = s3Url.substring("s3://".length());
-        int slash = rest.indexOf('/');
-        if (slash < 0) throw new IllegalArgumentException("Bad S3 URL: " + s3Url);
-        String bucket = rest.substring(0, slash);
-        String key = rest.substring(slash + 1);
-
-        S3Client s3 = S3Client.builder().region(Region.US_EAST_1).build();
-
-        try (ResponseInputStream<GetObjectResponse> in =
-                     s3.getObject(GetObjectRequest.builder().bucket(bucket).key(key).build());
-             BufferedReader br =
-                     new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
-
-            List<String> lines = new ArrayList<>();
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    lines.add(line);
+
+        // Lines are cut at '\n' bytes before decoding, so a character split across chunks stays
+        // whole; a trailing '\r' is trimmed by the caller
+        private String readLine() {
+            while (true) {
+                for (; scan < buf.length; scan++) {
+                    if (buf[scan] == '\n') {
+                        String line = new String(buf, pos, scan - pos, StandardCharsets.UTF_8);
+                        pos = ++scan;
+                        return line;
+                    }
                 }
+                if (offset >= size) {
+                    if (pos == buf.length)
+                        return null;
+                    String last = new String(buf, pos, buf.length - pos, StandardCharsets.UTF_8);
+                    pos = buf.length;
+                    return last;
+                }
+                byte[] chunk = fetch(offset, (int) Math.min(CHUNK_BYTES, size - offset));
+                offset += chunk.length;
+                byte[] joined = new byte[buf.length - pos + chunk.length];
+                System.arraycopy(buf, pos, joined, 0, buf.length - pos);
+                System.arraycopy(chunk, 0, joined, buf.length - pos, chunk.length);
+                scan -= pos;
+                buf = joined;
+                pos = 0;
             }
-            return lines;
+        }
+
+        // Backs off 2, 4, 8 s between tries; the last failure is thrown
+        private byte[] fetch(long from, int length) {
+            for (int attempt = 1;; attempt++) {
+                try {
+                    byte[] data = blobs.readRange(bucket, key, from, length);
+                    if (data == null)
+                        throw new IllegalStateException("Input " + key + " was deleted while being read");
+                    if (data.length == 0)
+                        throw new IllegalStateException("Input " + key + " ends at " + from + ", expected " + size);
+                    return data;
+                } catch (RuntimeException e) {
+                    if (attempt >= READ_ATTEMPTS)
+                        throw e;
+                    System.err.println("[Manager] Reading input " + key + " at byte " + from + " failed ("
+                            + e.getMessage() + "), retrying");
+                    try {
+                        Thread.sleep(1000L << attempt);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        }
 
-        } catch (Exception e) {
-            throw new RuntimeException("Failed reading " + s3Url + ": " + e.getMessage(), e);
+        @Override
+        public void close() {
+            buf = new byte[0]; // nothing held open between chunks
         }
     }
 }
@@ -1,31 +1,30 @@
 package manager;
 
+import common.ComputeProvider;
+import common.CorpusStats;
+import common.Envelope;
+import common.MessageQueue;
+import common.MessageQueue.Message;
+import common.ResultMessage;
+import common.TaskMessage;
+import common.Transports;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.ec2.Ec2Client;
-import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
-import software.amazon.awssdk.services.ec2.model.InstanceStateName;
-import software.amazon.awssdk.services.ec2.model.InstanceType;
-import software.amazon.awssdk.services.ec2.model.ResourceType;
-import software.amazon.awssdk.services.ec2.model.RunInstancesRequest;
-import software.amazon.awssdk.services.ec2.model.TagSpecification;
-import software.amazon.awssdk.services.ec2.model.TerminateInstancesRequest;
-import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.*;
-
-import software.amazon.awssdk.services.ec2.model.Filter;
-import software.amazon.awssdk.services.ec2.model.Tag;
-import software.amazon.awssdk.services.ec2.model.IamInstanceProfileSpecification;
-
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+
+
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ManagerApplication {
 
@@ -39,39 +38,114 @@ public class ManagerApplication {
     private static boolean TERMINATE_MODE;
 
     // ===== state =====
-    private final SqsClient sqs;
-    private final Ec2Client ec2;
+    private final MessageQueue queues; // SQS (sends and deletes batched) or in-process
+    private final ComputeProvider compute; // where workers run
+    private final Autoscaler autoscaler;
+    private final AtomicLong tasksFinished = new AtomicLong(); // feeds the autoscaler's throughput estimate
+    private final AtomicLong tasksSent = new AtomicLong(); // with envelopesSent: tasks per MWQ message
+    private final AtomicLong envelopesSent = new AtomicLong();
     private final ConcurrentHashMap<String, ManagerJob> activeJobs;
-    private final ConcurrentHashMap<String, List<TaskResult>> jobResults; // per-job aggregation
+    private final ConcurrentHashMap<String, ResultStore> jobResults; // per-job aggregation
+    private final ConcurrentHashMap<String, ShardedResult> shardResults; // "jobId|taskIndex" -> parts so far
     private final ExecutorService taskExecutor;
+    private final ExecutorService finalizeExecutor; // summary build + MAQ notify
+    private final ExecutorService resultExecutor; // handles WMQ batches as their receives complete
+    private final ManagerJournal journal; // lets a restarted manager pick its jobs up again
+    // Job id -> when it finished. LMQ redeliveries of these are dropped; see FINISHED_JOB_SECONDS
+    private final ConcurrentHashMap<String, Long> finishedJobs = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
 
     // Worker JAR URL needs to be defined
     private static final String WORKER_JAR_URL = "s3://wolfs-amaziah-bucket-123-aws/worker.jar";
     private static final String WORKER_CLASS_NAME = "worker.WorkerApplication";
-    private static final String INSTANCE_PROFILE_NAME = "LabInstanceProfile";
     private volatile boolean shouldTerminate = false;
 
-    // ==== tagging Workers ====
-    private static final String WORKER_TAG_KEY = "Role";
-    private static final String WORKER_TAG_VALUE = "Worker";
+    // Instances the account may run at once, manager included
     private static final int MAX_TOTAL_INSTANCES = 19;
 
-    private static final String AMI_ID = "ami-0fa3fe0fa7920f68e";
-    private static final String KEY_PAIR_NAME = "assignment1-key";
+    // Documents larger than two chunks are split into byte-range sub-tasks; 0 disables sharding
+    private static final long SHARD_CHUNK_BYTES = Long.parseLong(
+            System.getenv().getOrDefault("SHARD_CHUNK_BYTES", String.valueOf(256 * 1024)));
+
+    // Concurrent long-polls on WMQ, each taking up to 10 results. They are async receives, so
+    // more of them cost no threads.
+    private static final int WMQ_POLLERS = Integer.parseInt(System.getenv().getOrDefault("WMQ_POLLERS", "8"));
+
+    // Worker tasks (a document or one shard of it) packed into one MWQ message
+    private static final int ENVELOPE_TASKS = Math.max(1,
+            Integer.parseInt(System.getenv().getOrDefault("ENVELOPE_TASKS", "10")));
+
+    // Input lines read and dispatched per window while streaming a job's input file
+    private static final int INGEST_WINDOW = Integer.parseInt(System.getenv().getOrDefault("INGEST_WINDOW", "1000"));
+
+    // Where the journal lives, how often it is compacted, and whether snapshots also go to S3
+    private static final String JOURNAL_DIR = System.getenv().getOrDefault("JOURNAL_DIR",
+            Paths.get(System.getProperty("java.io.tmpdir"), "manager-journal").toString());
+    private static final long JOURNAL_SNAPSHOT_SECONDS = Long.parseLong(
+            System.getenv().getOrDefault("JOURNAL_SNAPSHOT_SECONDS", "30"));
+    private static final boolean JOURNAL_S3 = Boolean.parseBoolean(System.getenv().getOrDefault("JOURNAL_S3", "false"));
+
+    // Progress events (counts, ETA, links to finished results) go to a job's reply queue at most
+    // this often; 0 turns them off. Links are split over several events past PROGRESS_MAX_BYTES.
+    private static final long PROGRESS_SECONDS = Long.parseLong(System.getenv().getOrDefault("PROGRESS_SECONDS", "5"));
+    private static final int PROGRESS_MAX_BYTES = 200 * 1024;
+
+    // Tries at building and delivering a job's summary before the job is reported as failed
+    private static final int FINALIZE_ATTEMPTS = 5;
+    // Tries at reading a recovered job's input on from where dispatch stopped
+    private static final int INGEST_ATTEMPTS = 5;
+    // A finished job's id is remembered this long: a copy of its LMQ message can only come back
+    // within the visibility timeout it was received with (3600 s), so a day is plenty
+    private static final long FINISHED_JOB_SECONDS = Long.parseLong(
+            System.getenv().getOrDefault("FINISHED_JOB_SECONDS", "86400"));
 
     public ManagerApplication() {
-        this.sqs = SqsClient.builder().region(Region.US_EAST_1).build();
+        this(ec2Workers(ComputeProvider.WORKER_ROLE), Paths.get(JOURNAL_DIR));
+    }
+
+    // EC2 workers tagged Role=<role>, polling the configured MWQ/WMQ. Call configure() first.
+    public static ComputeProvider ec2Workers(String role) {
+        return new Ec2ComputeProvider(Ec2Client.builder().region(Region.US_EAST_1).build(),
+                WORKER_JAR_URL, WORKER_CLASS_NAME, String.join(" ", MW_QUEUE_URL, WM_QUEUE_URL, S3_BUCKET_NAME), role);
+    }
+
+    // Workers come from `compute`; queues and blobs from Transports. Call configure() first.
+    public ManagerApplication(ComputeProvider compute, Path journalDir) {
+        this.queues = Transports.queues();
         this.activeJobs = new ConcurrentHashMap<>();
         this.jobResults = new ConcurrentHashMap<>();
+        this.shardResults = new ConcurrentHashMap<>();
         this.taskExecutor = Executors.newFixedThreadPool(10);
-        this.ec2 = Ec2Client.builder().region(Region.US_EAST_1).build();
+        this.finalizeExecutor = Executors.newFixedThreadPool(2);
+        this.resultExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        this.journal = new ManagerJournal(journalDir, JOURNAL_S3 ? S3_BUCKET_NAME : null, LM_QUEUE_URL);
+        this.compute = compute;
+        this.autoscaler = new Autoscaler(compute, new Autoscaler.Signals() {
+            @Override
+            public Autoscaler.Load load() {
+                return mwqLoad();
+            }
+
+            @Override
+            public long completed() {
+                return tasksFinished.get();
+            }
+        }, ComputeProvider.WORKER_ROLE, N_WORKERS_RATIO, MAX_TOTAL_INSTANCES);
     }
 
     public static void main(String[] args) {
-        // Expect 7 args: LMQ MWQ WMQ MAQ bucket n terminate
+        if (!configure(args))
+            return;
+
+        ManagerApplication manager = new ManagerApplication();
+        manager.startManagerLoop();
+    }
+
+    // Reads the 7 CLI args: LMQ MWQ WMQ MAQ bucket n terminate. False (and a message) if they are bad.
+    public static boolean configure(String[] args) {
         if (args.length < 7) {
             System.err.println("Manager requires 7 args: LMQ MWQ WMQ MAQ BUCKET N TERMINATE");
-            return;
+            return false;
         }
 
         try {
@@ -87,60 +161,124 @@ public class ManagerApplication {
             TERMINATE_MODE = "true".equalsIgnoreCase(termArg) || "terminate".equalsIgnoreCase(termArg);
         } catch (Exception e) {
             System.err.println("Error parsing manager arguments. Aborting. " + e.getMessage());
-            return;
+            return false;
         }
-
-        ManagerApplication manager = new ManagerApplication();
-        manager.startManagerLoop();
+        return true;
     }
 
     public void startManagerLoop() {
-        System.out.println("Manager started. Listening to queues...");
-
-        while (true) {
-            // 1) New jobs from Local -> Manager (use long polling)
-            List<Message> newTasks = receiveMessages(LM_QUEUE_URL, 1, 20, 3600);
-            for (Message message : newTasks) {
-                taskExecutor.submit(() -> {
-                    try {
-                        handleNewTask(message);
-                    } catch (Exception e) {
-                        System.err.println("[Manager] handleNewTask failed: " + e.getMessage());
-                        e.printStackTrace();
-                        // Note: do NOT delete the message here; it will reappear after visibility
-                        // timeout.
-                        // If you want to dead-letter bad messages, add logic here.
-                    }
-                });
+        System.out.println("Manager started. Listening to queues with " + WMQ_POLLERS + " WMQ polls in flight...");
+        recover();
+        autoscaler.start();
+
+        // Each queue gets its own long-polling thread(s): a result never waits behind an LMQ poll
+        List<Thread> pollers = new ArrayList<>();
+        pollers.add(startPoller("lmq-poller", this::pollLocalQueue));
+        for (int i = 0; i < WMQ_POLLERS; i++) {
+            pollWorkerQueue();
+        }
+        if (PROGRESS_SECONDS > 0)
+            pollers.add(startPoller("progress", this::publishProgressRound));
+
+        // Terminate condition
+        while (!(shouldTerminate && TERMINATE_MODE && allJobsCompleted())) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
             }
+        }
+        System.out.println("All jobs complete and Terminate mode is set. Shutting down...");
+        running = false;
+        for (Thread t : pollers) {
+            t.interrupt();
+        }
+        taskExecutor.shutdown();
+        finalizeExecutor.shutdown();
+        resultExecutor.shutdown();
+        autoscaler.stop();
+        journal.checkpoint();
+        journal.close();
+        queues.flush();
+        terminateSystem();
+    }
 
-            // 2) Results from Worker -> Manager
-            List<Message> results = receiveMessages(WM_QUEUE_URL, 10, 20, 3600);
-            for (Message result : results) {
+    private Thread startPoller(String name, Runnable loop) {
+        Thread t = new Thread(() -> {
+            while (running) {
                 try {
-                    handleWorkerResult(result);
-                } finally {
-                    // always delete WMQ message after accounting it
-                    deleteMessage(WM_QUEUE_URL, result.receiptHandle());
+                    loop.run();
+                } catch (Exception e) {
+                    if (!running)
+                        break;
+                    System.err.println("[Manager] " + name + " failed: " + e.getMessage());
+                    sleepQuietly(1000); // back off, e.g. while SQS is throttling
                 }
             }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
 
-            // 3) Terminate condition
-            if (shouldTerminate && TERMINATE_MODE && allJobsCompleted()) {
-                System.out.println("All jobs complete and Terminate mode is set. Shutting down...");
-                terminateSystem();
-                break;
-            }
+    // 1) New jobs from Local -> Manager (use long polling)
+    private void pollLocalQueue() {
+        List<Message> newTasks = receiveMessages(LM_QUEUE_URL, 10, 20, 3600);
+        for (Message message : newTasks) {
+            taskExecutor.submit(() -> {
+                try {
+                    handleNewTask(message);
+                } catch (Exception e) {
+                    System.err.println("[Manager] handleNewTask failed: " + e.getMessage());
+                    e.printStackTrace();
+                    // Note: do NOT delete the message here; it will reappear after visibility
+                    // timeout.
+                    // If you want to dead-letter bad messages, add logic here.
+                }
+            });
+        }
+    }
+
+    // 2) Results from Worker -> Manager, full batches, WMQ_POLLERS long polls in flight. Each
+    // poll re-arms itself once its batch is handled; batches are handled on resultExecutor, so
+    // journal writes never run on the SDK's response threads.
+    private void pollWorkerQueue() {
+        if (!running)
+            return;
+        // Short visibility: after a manager crash, results it never journaled come back quickly
+        queues.receiveAsync(WM_QUEUE_URL, 10, 20, 300)
+                .thenAcceptAsync(this::handleWorkerResults, resultExecutor)
+                .whenComplete((v, e) -> {
+                    if (e == null) {
+                        pollWorkerQueue();
+                    } else if (running) {
+                        System.err.println("[Manager] WMQ poll failed: " + e.getMessage());
+                        // back off, e.g. while SQS is throttling
+                        CompletableFuture.delayedExecutor(1, TimeUnit.SECONDS).execute(this::pollWorkerQueue);
+                    }
+                });
+    }
 
-            // short sleep to reduce SQS churn
+    private void handleWorkerResults(List<Message> results) {
+        for (Message result : results) {
             try {
-                Thread.sleep(2000);
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
+                handleWorkerResult(result);
+            } catch (Exception e) {
+                System.err.println("[Manager] handleWorkerResult failed: " + e.getMessage());
+            } finally {
+                // always delete WMQ message after accounting it, once the journal has it for good
+                journal.whenDurable(() -> deleteMessage(WM_QUEUE_URL, result.receiptHandle()));
             }
         }
+    }
 
-        taskExecutor.shutdown();
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     // ==== CORE HANDLERS ====
@@ -161,12 +299,26 @@ public class ManagerApplication {
         String jobId = extract(body, "jobId");
         String inputS3 = extract(body, "inputS3");
         String outputFile = extract(body, "outputFile");
+        // Clients that poll a queue of their own name it here; older ones wait on the shared MAQ
+        String replyQueue = extract(body, "replyQueue");
 
-        if (activeJobs.containsKey(jobId)) {
-            System.out.println("Job " + jobId + " is already active. Skipping duplicate.");
+        if (finishedJobs.containsKey(jobId)) {
+            System.out.println("Job " + jobId + " already finished. Dropping redelivered message.");
             deleteMessage(LM_QUEUE_URL, message.receiptHandle());
             return;
         }
+        ManagerJob active = activeJobs.get(jobId);
+        if (active != null) {
+            // Redelivered (e.g. after a manager restart): keep the job, but only the newest
+            // receipt handle can acknowledge the message once the job is done
+            System.out.println("Job " + jobId + " is already active. Skipping duplicate.");
+            try (ManagerJournal.Guard g = journal.guard()) {
+                active.setLocalAppReceiptHandle(message.receiptHandle());
+                journal.append("J", jobId, message.receiptHandle(), active.getLocalAppOutputFile(),
+                        active.getInputS3(), active.getReplyQueue());
+            }
+            return;
+        }
 
         // Fallback: build from bucket+key if inputS3 missing
         if (inputS3 == null || inputS3.isBlank()) {
@@ -184,306 +336,695 @@ public class ManagerApplication {
             return;
         }
 
-        // 1) Read input file (ANALYSIS \t URL per line) and fan-out tasks to MWQ
-        List<String> lines = InputDownloader.readAllLinesFromS3(inputS3);
-        int total = 0;
-        for (String line : lines) {
-            int tab = line.indexOf('\t');
-            if (tab < 0)
-                continue; // skip malformed
-            String analysis = line.substring(0, tab).trim();
-            String url = line.substring(tab + 1).trim();
-            if (analysis.isEmpty() || url.isEmpty())
-                continue;
+        // 1) Track job and init result list before the first task is sent: with concurrent
+        // pollers a fast worker's result could otherwise arrive for an unknown job and be dropped.
+        // The task total grows as the input is read and is sealed at the end.
+        ManagerJob job = new ManagerJob(jobId, message.receiptHandle(), outputFile, inputS3, replyQueue);
+        try (ManagerJournal.Guard g = journal.guard()) {
+            activeJobs.put(jobId, job);
+            jobResults.put(jobId, newResultStore(jobId));
+            journal.append("J", jobId, message.receiptHandle(), outputFile, inputS3, replyQueue);
+        }
+
+        ingest(jobId, job, 0);
+    }
 
-            String taskJson = String.format(
-                    "{\"jobId\":\"%s\",\"url\":\"%s\",\"analysis\":\"%s\"}",
-                    escapeJson(jobId), escapeJson(url), escapeJson(analysis));
-            send(MW_QUEUE_URL, taskJson);
-            total++;
+    // Reads the job's input from line `skip` on (0, or where a recovered job left off),
+    // dispatches it and seals the job at the end
+    private void ingest(String jobId, ManagerJob job, int skip) {
+        // 2) Stream the input file (ANALYSIS \t URL per line) and fan it out window by window:
+        // workers start on the first documents while the rest is still downloading, and only
+        // one window of lines is held in memory. Windows start small and double up to
+        // INGEST_WINDOW lines.
+        int total = skip;
+        int documents = 0;
+        int workerTasks = 0;
+        int failedSends = 0;
+        int window = 16;
+        try (InputDownloader.InputLines lines = InputDownloader.open(job.getInputS3())) {
+            for (int i = 0; i < skip && lines.hasNext(); i++) {
+                lines.next();
+            }
+            while (lines.hasNext()) {
+                // Group analyses by URL so each document is downloaded and parsed once. Every line
+                // keeps its own task index (its position in the input) through to the result.
+                Map<String, List<String>> analysesByUrl = new LinkedHashMap<>();
+                Map<String, List<Integer>> indexesByUrl = new HashMap<>();
+                int n = 0;
+                while (n < window && lines.hasNext()) {
+                    String[] pair = lines.next();
+                    analysesByUrl.computeIfAbsent(pair[1], u -> new ArrayList<>()).add(pair[0]);
+                    indexesByUrl.computeIfAbsent(pair[1], u -> new ArrayList<>()).add(total + n);
+                    n++; // still one task per line: the worker reports each analysis separately
+                }
+                List<PlannedTask> planned = planTasks(jobId, analysesByUrl, indexesByUrl);
+                job.addSubtasks(n);
+                failedSends += dispatch(jobId, job, planned);
+
+                total += n;
+                try (ManagerJournal.Guard g = journal.guard()) {
+                    job.markDispatched(total);
+                    journal.append("D", jobId, String.valueOf(total));
+                }
+                documents += analysesByUrl.size();
+                workerTasks += planned.size();
+                if (total == skip + n)
+                    autoscaler.nudge(); // first window is out: get workers booting now
+                window = Math.min(window * 2, INGEST_WINDOW);
+            }
+        } catch (RuntimeException e) {
+            if (total == skip && skip > 0) {
+                // A recovered job sent nothing new: it keeps what it dispatched before the restart
+                // and reads on from the same line later
+                retryIngest(jobId, job, skip, e);
+                return;
+            }
+            if (total == skip) {
+                // Nothing sent yet: forget the job and let the message come back for a retry
+                try (ManagerJournal.Guard g = journal.guard()) {
+                    activeJobs.remove(jobId);
+                    jobResults.remove(jobId);
+                    journal.append("X", jobId);
+                }
+                throw e;
+            }
+            // Some tasks are out already. Completing with what was read would hand the client a
+            // summary that silently misses the rest of its input, so the job fails instead.
+            // (Each chunk of input was already retried from its own offset.)
+            failJob(jobId, job, "input could only be read up to line " + total + ": " + e.getMessage());
+            return;
         }
-        System.out.println("[Manager] Fanned out " + total + " tasks to MWQ for job " + jobId);
+        try (ManagerJournal.Guard g = journal.guard()) {
+            job.seal();
+            journal.append("S", jobId);
+        }
+        System.out.println("[Manager] Fanned out " + (total - skip) + " tasks (" + documents
+                + " documents, " + workerTasks + " worker tasks, " + failedSends + " failed) to MWQ for job " + jobId);
 
-        // 2) Track job and init result list
-        activeJobs.put(jobId, new ManagerJob(jobId, total, message.receiptHandle(), outputFile));
-        jobResults.put(jobId, new CopyOnWriteArrayList<>());
+        // 3) Let the autoscaler size the fleet for the new backlog right away
+        autoscaler.nudge();
 
-        // 3) Scale workers by N (cap handled in ensureWorkers)
-        scaleWorkersIfNeeded();
+        // Results for the early windows may all be in already
+        maybeFinalize(jobId, job);
     }
 
-    // Worker -> Manager result
-    private void handleWorkerResult(Message msg) {
-        String body = msg.body(); // {"jobId","url","analysis","resultS3","ok":true/false,"error":...}
-        String jobId = extract(body, "jobId");
-        ManagerJob job = activeJobs.get(jobId);
-        if (job == null) {
-            // Could be a late result after job closed; ignore safely
+    // Backs off 30, 60, 90... s; after INGEST_ATTEMPTS the job fails like one whose input broke off
+    private void retryIngest(String jobId, ManagerJob job, int skip, RuntimeException e) {
+        int failures = job.addIngestFailure();
+        if (failures >= INGEST_ATTEMPTS) {
+            failJob(jobId, job, "input could not be read again after a restart: " + e.getMessage());
             return;
         }
+        System.err.println("[Manager] Resuming input of job " + jobId + " at line " + skip + " failed (attempt "
+                + failures + "): " + e.getMessage());
+        CompletableFuture.delayedExecutor(30L * failures, TimeUnit.SECONDS, taskExecutor)
+                .execute(() -> ingest(jobId, job, skip));
+    }
 
-        String url = extract(body, "url");
-        String anal = extract(body, "analysis");
-        boolean ok = body.contains("\"ok\":true");
-        String resultS3 = ok ? extract(body, "resultS3") : null;
-        String error = ok ? null : extract(body, "error");
-
-        jobResults.get(jobId).add(new TaskResult(url, anal, resultS3, ok, error));
-        if (ok)
-            job.incrementCompleted();
-        else
-            job.incrementFailed();
+    // Probes, shards and orders one window of documents
+    private List<PlannedTask> planTasks(String jobId, Map<String, List<String>> analysesByUrl,
+            Map<String, List<Integer>> indexesByUrl) {
+        // Probe every document's size (cached from earlier runs where possible). Sizes drive
+        // both sharding (see SHARD_CHUNK_BYTES) and the dispatch order below.
+        Map<String, UrlProbe.Result> probes = UrlProbe.probeAll(analysesByUrl.keySet(), 16,
+                SHARD_CHUNK_BYTES > 0 ? 2 * SHARD_CHUNK_BYTES : Long.MAX_VALUE);
+        long fallbackCost = medianLength(probes.values());
+
+        List<PlannedTask> planned = new ArrayList<>();
+        for (Map.Entry<String, List<String>> e : analysesByUrl.entrySet()) {
+            List<Integer> indexes = indexesByUrl.get(e.getKey());
+            int[] tasks = indexes.stream().mapToInt(Integer::intValue).toArray();
+            UrlProbe.Result probe = probes.getOrDefault(e.getKey(), UrlProbe.Result.UNKNOWN);
+            int parts = SHARD_CHUNK_BYTES > 0 && probe.acceptsRanges && probe.length > 2L * SHARD_CHUNK_BYTES
+                    ? (int) ((probe.length + SHARD_CHUNK_BYTES - 1) / SHARD_CHUNK_BYTES)
+                    : 1;
+            if (parts == 1) {
+                long cost = probe.length >= 0 ? probe.length : fallbackCost;
+                planned.add(new PlannedTask(new TaskMessage(jobId, e.getKey(), e.getValue(), tasks, -1, -1, 0, 1),
+                        cost));
+                continue;
+            }
+            // Byte ranges are only approximate: workers snap both ends to the next paragraph break
+            for (int part = 0; part < parts; part++) {
+                long from = part * SHARD_CHUNK_BYTES;
+                long to = part == parts - 1 ? probe.length : from + SHARD_CHUNK_BYTES;
+                planned.add(new PlannedTask(
+                        new TaskMessage(jobId, e.getKey(), e.getValue(), tasks, from, to, part, parts), to - from));
+            }
+        }
 
-        if (job.isCompleted()) {
-            // Build and upload summary HTML
-            String summaryS3 = SummaryBuilder.buildAndUpload(S3_BUCKET_NAME, jobId, jobResults.get(jobId));
+        // Longest-processing-time first within the window: the biggest documents start first,
+        // instead of a large book listed last stretching the end of the window
+        planned.sort((x, y) -> Long.compare(y.cost, x.cost));
 
-            // Notify Local via Manager -> App queue
-            String doneJson = String.format(
-                    "{\"jobId\":\"%s\",\"summaryHtmlS3\":\"%s\"}",
-                    escapeJson(jobId), escapeJson(summaryS3));
-            send(MA_QUEUE_URL, doneJson);
+        return planned;
+    }
 
-            // Delete the original Local message (acknowledge job)
-            deleteMessage(LM_QUEUE_URL, job.getLocalAppReceiptHandle());
+    // Tasks travel ENVELOPE_TASKS to a message. Envelope k gets tasks k, k+n, k+2n, ... of the
+    // cost-ordered window, so envelopes carry similar work, the biggest documents still start
+    // first, and the parts of a sharded document go to different workers.
+    // Sends are batched 10 per request and flushed in parallel; wait for all of them. Tasks
+    // that could not be queued are only logged here and accounted as failed results right away,
+    // otherwise the job would wait for them forever. The client sees them as failed tasks
+    // ("could not queue task: ...") in the progress counts and in the summary.
+    // Returns the number of tasks that failed to send.
+    private int dispatch(String jobId, ManagerJob job, List<PlannedTask> planned) {
+        int failedTasks = 0;
+        List<PlannedTask> sendable = new ArrayList<>(planned.size());
+        for (PlannedTask p : planned) {
+            if (Envelope.fits(p.message, TaskMessage.CODEC)) {
+                sendable.add(p);
+            } else {
+                // an input line of hundreds of KB: no message can carry it
+                failedTasks++;
+                failTask(jobId, job, p.message, "task too large for a message");
+            }
+        }
+        planned = sendable;
+        if (planned.isEmpty())
+            return failedTasks;
+        int envelopeCount = (planned.size() + ENVELOPE_TASKS - 1) / ENVELOPE_TASKS;
+        List<List<TaskMessage>> groups = new ArrayList<>(envelopeCount);
+        for (int k = 0; k < envelopeCount; k++) {
+            groups.add(new ArrayList<>(ENVELOPE_TASKS));
+        }
+        for (int i = 0; i < planned.size(); i++) {
+            groups.get(i % envelopeCount).add(planned.get(i).message);
+        }
+        List<Envelope<TaskMessage>> envelopes = new ArrayList<>(envelopeCount);
+        List<CompletableFuture<Void>> sends = new ArrayList<>(envelopeCount);
+        for (List<TaskMessage> group : groups) {
+            for (Envelope<TaskMessage> envelope : Envelope.pack(group, TaskMessage.CODEC)) {
+                envelopes.add(envelope);
+                sends.add(send(MW_QUEUE_URL, envelope.body));
+            }
+        }
+        tasksSent.addAndGet(planned.size());
+        envelopesSent.addAndGet(envelopes.size());
+        boolean logged = false;
+        for (int i = 0; i < envelopes.size(); i++) {
+            try {
+                sends.get(i).join();
+            } catch (Exception e) {
+                if (!logged)
+                    System.err.println("[Manager] Task send failed for job " + jobId + ": " + e.getMessage());
+                logged = true;
+                for (TaskMessage t : envelopes.get(i).items) {
+                    failedTasks++;
+                    failTask(jobId, job, t, "could not queue task: " + e.getMessage());
+                }
+            }
+        }
+        return failedTasks;
+    }
 
-            // Cleanup
-            activeJobs.remove(jobId);
-            jobResults.remove(jobId);
-            System.out.println("[Manager] Job " + jobId + " completed. Summary at " + summaryS3);
+    private void failTask(String jobId, ManagerJob job, TaskMessage t, String error) {
+        for (int a = 0; a < t.analyses.size(); a++) {
+            accountResult(jobId, job, t.taskIndexes[a], t.url, t.analyses.get(a), t.part, t.parts, false,
+                    null, error, null);
         }
     }
 
-    // ==== QUEUE HELPERS ====
+    // Worker -> Manager: an envelope with the results of the tasks of one MWQ message
+    private void handleWorkerResult(Message msg) {
+        for (ResultMessage r : Envelope.unpack(msg.body(), ResultMessage.CODEC)) {
+            ManagerJob job = r.jobId == null ? null : activeJobs.get(r.jobId);
+            if (job == null) {
+                // Could be a late result after job closed; ignore safely
+                continue;
+            }
 
-    private List<Message> receiveMessages(String queueUrl, int maxMessages, int waitSeconds, int visibilityTimeout) {
-        ReceiveMessageRequest receiveRequest = ReceiveMessageRequest.builder()
-                .queueUrl(queueUrl)
-                .maxNumberOfMessages(maxMessages)
-                .waitTimeSeconds(waitSeconds) // long polling
-                .visibilityTimeout(visibilityTimeout)
-                .build();
-        return sqs.receiveMessage(receiveRequest).messages();
+            // Merged only if this turns out to be the task's first result, see recordResult
+            CorpusStats stats = null;
+            if (r.ok && r.stats != null) {
+                try {
+                    stats = CorpusStats.decode(r.stats);
+                } catch (Exception e) {
+                    System.err.println("[Manager] Ignoring unreadable stats for " + r.url + ": " + e.getMessage());
+                }
+            }
+
+            accountResult(r.jobId, job, r.task, r.url, r.analysis, r.part, r.parts, r.ok,
+                    r.ok ? r.resultS3 : null, r.ok ? null : (r.error == null ? "" : r.error), stats);
+        }
     }
 
-    private void deleteMessage(String queueUrl, String receiptHandle) {
-        if (receiptHandle == null || receiptHandle.isEmpty())
+    // Counts one (analysis, url) outcome; parts of a sharded document are collected first
+    private void accountResult(String jobId, ManagerJob job, int taskIndex, String url, String anal, int part,
+            int parts, boolean ok, String resultS3, String error, CorpusStats stats) {
+        if (parts <= 1) {
+            recordResult(jobId, job, taskIndex, new TaskResult(url, anal, resultS3, ok, error), stats, null);
+            return;
+        }
+        // A redelivered part of a task that is already done must not open a new shard entry
+        if (job.isDone(taskIndex))
             return;
-        sqs.deleteMessage(DeleteMessageRequest.builder()
-                .queueUrl(queueUrl)
-                .receiptHandle(receiptHandle)
-                .build());
+
+        // Sub-task of a sharded document: the task only counts once all its parts are in
+        String shardKey = shardKey(jobId, taskIndex, anal, url);
+        ShardedResult shard;
+        boolean complete;
+        try (ManagerJournal.Guard g = journal.guard()) {
+            // Checked again atomically with the shard's entry: recordResult marks the task done
+            // before it removes the entry, so a part racing it either finds the entry or sees done
+            shard = shardResults.compute(shardKey, (k, open) -> open != null || job.isDone(taskIndex) ? open
+                    : new ShardedResult(jobId, taskIndex, url, anal, parts));
+            if (shard == null)
+                return;
+            complete = shard.add(part, resultS3, error, stats);
+            if (taskIndex >= 0)
+                journal.append("P", jobId, String.valueOf(taskIndex), String.valueOf(part), String.valueOf(parts),
+                        String.valueOf(error == null), url, anal, error == null ? resultS3 : error, encodeStats(stats));
+        }
+        if (complete)
+            completeShard(shardKey, shard, job);
     }
 
-    private void send(String queueUrl, String body) {
-        sqs.sendMessage(SendMessageRequest.builder()
-                .queueUrl(queueUrl)
-                .messageBody(body)
-                .build());
+    private static String shardKey(String jobId, int taskIndex, String anal, String url) {
+        return taskIndex >= 0 ? jobId + "|" + taskIndex : jobId + "|" + anal + "|" + url;
     }
 
-    // ==== JOB/SHUTDOWN ====
+    // The shard stays in shardResults, and so in snapshots, until its R record is journaled
+    private void completeShard(String shardKey, ShardedResult shard, ManagerJob job) {
+        String jobId = shard.jobId;
+        if (!shard.ok()) {
+            recordResult(jobId, job, shard.taskIndex,
+                    new TaskResult(shard.url, shard.analysis, null, false, shard.error()), shard.stats(), shardKey);
+            return;
+        }
+        // Merging copies every part through S3: keep it off the polling thread
+        taskExecutor.submit(() -> {
+            TaskResult merged;
+            try {
+                String key = "results/" + jobId + "/merged-" + System.currentTimeMillis() + "-"
+                        + Integer.toHexString(shardKey.hashCode()) + ".txt";
+                merged = new TaskResult(shard.url, shard.analysis,
+                        ResultMerger.concat(S3_BUCKET_NAME, key, shard.partResults()), true, null);
+            } catch (Exception e) {
+                merged = new TaskResult(shard.url, shard.analysis, null, false, "merge failed: " + e.getMessage());
+            }
+            recordResult(jobId, job, shard.taskIndex, merged, shard.stats(), shardKey);
+            // Only once the R record would survive a crash: until then recovery merges the parts again
+            if (merged.ok)
+                journal.whenDurable(() -> taskExecutor.submit(
+                        () -> ResultMerger.deleteParts(S3_BUCKET_NAME, shard.partResults())));
+        });
+    }
 
-    private boolean allJobsCompleted() {
-        if (activeJobs.isEmpty())
-            return true;
-        for (ManagerJob job : activeJobs.values()) {
-            if (!job.isCompleted())
-                return false;
+    // First result per task index wins. SQS may deliver a result twice and a task whose
+    // message became visible again may run twice; later copies are dropped here, so they can
+    // neither finish the job early nor push its count past the total.
+    // shardKey names the sharded result this completes, null for a plain task. The shard is
+    // dropped under the same guard as the R record: a snapshot in between would otherwise hold
+    // neither, and the task would never complete after a crash.
+    private void recordResult(String jobId, ManagerJob job, int taskIndex, TaskResult result, CorpusStats stats,
+            String shardKey) {
+        boolean applied;
+        try (ManagerJournal.Guard g = journal.guard()) {
+            applied = applyResult(jobId, job, taskIndex, result, stats);
+            if (applied)
+                journal.append("R", jobId, String.valueOf(taskIndex), String.valueOf(result.ok), result.url,
+                        result.analysis, result.ok ? result.resultS3 : result.error, encodeStats(stats));
+            if (shardKey != null)
+                shardResults.remove(shardKey); // a duplicate's task is done already
+        }
+        if (applied)
+            maybeFinalize(jobId, job);
+    }
+
+    private boolean applyResult(String jobId, ManagerJob job, int taskIndex, TaskResult result, CorpusStats stats) {
+        if (!job.claim(taskIndex))
+            return false;
+        if (stats != null)
+            job.mergeStats(stats);
+        jobResults.get(jobId).add(taskIndex, result);
+        if (result.ok) {
+            job.incrementCompleted();
+            if (streamsProgress(job))
+                job.addUnpublishedResult(String.format("{\"task\":%d,\"analysis\":\"%s\",\"resultS3\":\"%s\"}",
+                        taskIndex, escapeJson(result.analysis), escapeJson(result.resultS3)));
+        } else {
+            job.incrementFailed();
         }
+        tasksFinished.incrementAndGet();
         return true;
     }
 
-    private void terminateSystem() {
-        System.out.println("Terminating system via EC2 API...");
+    // Only clients with a reply queue get progress: the shared MAQ is for done notices alone
+    private static boolean streamsProgress(ManagerJob job) {
+        return PROGRESS_SECONDS > 0 && !job.getReplyQueue().isBlank();
+    }
 
-        try {
-            List<String> workerIds = getActiveInstanceIds(WORKER_TAG_VALUE);
-            if (!workerIds.isEmpty()) {
-                System.out.println("Terminating " + workerIds.size() + " workers...");
-                ec2.terminateInstances(TerminateInstancesRequest.builder().instanceIds(workerIds).build());
-            }
-        } catch (Exception e) {
-            System.err.println("Error terminating workers: " + e.getMessage());
+    private void publishProgressRound() {
+        sleepQuietly(TimeUnit.SECONDS.toMillis(PROGRESS_SECONDS));
+        for (ManagerJob job : activeJobs.values()) {
+            publishProgress(job);
         }
+    }
 
-        try {
-            String myId = retrieveInstanceId();
-            if (myId != null) {
-                System.out.println("Terminating self: " + myId);
-                ec2.terminateInstances(TerminateInstancesRequest.builder().instanceIds(myId).build());
+    // {"jobId","progress":true,"done","failed","total","sealed","etaSeconds","results":[{task,analysis,resultS3}]}.
+    // "total" only grows until the job is sealed. Sends are not awaited; a lost event costs the
+    // client nothing it cannot find in the summary.
+    private void publishProgress(ManagerJob job) {
+        if (!streamsProgress(job) || !job.markProgressPublished())
+            return;
+        StringBuilder results = new StringBuilder();
+        String result = job.pollUnpublishedResult();
+        do {
+            results.setLength(0);
+            while (result != null && (results.length() == 0 || results.length() + result.length() < PROGRESS_MAX_BYTES)) {
+                if (results.length() > 0)
+                    results.append(',');
+                results.append(result);
+                result = job.pollUnpublishedResult();
             }
-        } catch (Exception e) {
-            System.err.println("Error terminating manager: " + e.getMessage());
+            String json = String.format(
+                    "{\"jobId\":\"%s\",\"progress\":true,\"done\":%d,\"failed\":%d,\"total\":%d,\"sealed\":%b,\"etaSeconds\":%d,\"results\":[%s]}",
+                    escapeJson(job.getJobId()), job.getCompleted(), job.getFailed(), job.getTotalSubtasks(),
+                    job.isSealed(), job.etaSeconds(), results);
+            send(job.getReplyQueue(), json).exceptionally(e -> {
+                System.err.println("[Manager] Progress for job " + job.getJobId() + " not sent: " + e.getMessage());
+                return null;
+            });
+        } while (result != null);
+    }
+
+    // Results are recorded from several pollers and from merge tasks, and the job is sealed by
+    // the fan-out thread: only one of them finalizes. Building and uploading the summary is
+    // slow, so it runs off the polling threads.
+    // A failed attempt (e.g. S3 or SQS unavailable) is retried after 2, 4, 8... s; after
+    // FINALIZE_ATTEMPTS the client is told the job failed.
+    private void maybeFinalize(String jobId, ManagerJob job) {
+        if (job.isCompleted() && job.markFinalized()) {
+            finalizeExecutor.submit(() -> {
+                try {
+                    finalizeJob(jobId, job);
+                } catch (Exception e) {
+                    int failures = job.addFinalizeFailure();
+                    System.err.println("[Manager] Finalizing job " + jobId + " failed (attempt " + failures + "): "
+                            + e.getMessage());
+                    if (failures >= FINALIZE_ATTEMPTS) {
+                        failJob(jobId, job, "summary could not be built or delivered: " + e.getMessage());
+                        return;
+                    }
+                    job.clearFinalized();
+                    CompletableFuture.delayedExecutor(1L << failures, TimeUnit.SECONDS)
+                            .execute(() -> maybeFinalize(jobId, job));
+                }
+            });
+        }
+    }
+
+    private void finalizeJob(String jobId, ManagerJob job) {
+        // Build and upload summary HTML
+        ResultStore results = jobResults.get(jobId);
+        String summaryS3 = SummaryBuilder.buildAndUpload(S3_BUCKET_NAME, jobId, results, job.getStats());
+
+        // Notify Local on its own reply queue, or on the shared Manager -> App queue. The last
+        // result links go out first; "succeeded" tells a streaming client how many to expect.
+        publishProgress(job);
+        String doneJson = String.format(
+                "{\"jobId\":\"%s\",\"summaryHtmlS3\":\"%s\",\"succeeded\":%d}",
+                escapeJson(jobId), escapeJson(summaryS3), job.getCompleted());
+        notifyClient(job, doneJson);
+
+        // Delete the original Local message (acknowledge job)
+        deleteMessage(LM_QUEUE_URL, job.getLocalAppReceiptHandle());
+
+        // Cleanup; the job id stays behind so a late copy of its LMQ message is not run again
+        try (ManagerJournal.Guard g = journal.guard()) {
+            activeJobs.remove(jobId);
+            jobResults.remove(jobId);
+            long now = System.currentTimeMillis();
+            finishedJobs.put(jobId, now);
+            journal.append("F", jobId, String.valueOf(now));
         }
+        System.out.println("[Manager] Job " + jobId + " completed (" + results.size() + " results in "
+                + results.bytes() / 1024 + " KB). Summary at " + summaryS3);
     }
 
-    private void scaleWorkersIfNeeded() {
-        // Very simple heuristic: approximate backlog -> desired workers = ceil(backlog
-        // / N_WORKERS_RATIO)
+    // Gives up on a job: the client gets {"jobId","error"} instead of a summary, and the job is
+    // closed like a finished one, so neither the client nor a terminating manager waits forever
+    private void failJob(String jobId, ManagerJob job, String reason) {
+        System.err.println("[Manager] Job " + jobId + " failed: " + reason);
         try {
-            Map<QueueAttributeName, String> attrs = sqs.getQueueAttributes(GetQueueAttributesRequest.builder()
-                    .queueUrl(MW_QUEUE_URL)
-                    .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
-                    .build()).attributes();
-
-            int backlog = 0;
-            if (attrs.containsKey(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)) {
-                backlog = Integer.parseInt(attrs.get(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES));
+            notifyClient(job, String.format("{\"jobId\":\"%s\",\"error\":\"%s\"}", escapeJson(jobId),
+                    escapeJson(reason.replace('\n', ' '))));
+        } catch (RuntimeException e) {
+            System.err.println("[Manager] Could not report the failure of job " + jobId + ": " + e.getMessage());
+        }
+        deleteMessage(LM_QUEUE_URL, job.getLocalAppReceiptHandle());
+        try (ManagerJournal.Guard g = journal.guard()) {
+            activeJobs.remove(jobId);
+            jobResults.remove(jobId);
+            shardResults.values().removeIf(sr -> sr.jobId.equals(jobId));
+            long now = System.currentTimeMillis();
+            finishedJobs.put(jobId, now);
+            journal.append("F", jobId, String.valueOf(now));
+        }
+    }
+
+    // A reply queue can be gone (the client gave up and deleted it); the notice then still
+    // lands on the shared MAQ instead of failing the job
+    private void notifyClient(ManagerJob job, String json) {
+        String replyQueue = job.getReplyQueue();
+        if (!replyQueue.isBlank()) {
+            try {
+                send(replyQueue, json).join();
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("[Manager] Reply queue of job " + job.getJobId() + " unavailable ("
+                        + e.getMessage() + "), using MAQ");
             }
-            int desired = Math.max(1, (int) Math.ceil(backlog / (double) Math.max(1, N_WORKERS_RATIO)));
-            ensureWorkers(desired); // implement with EC2; cap at 19 total
-        } catch (Exception ignored) {
         }
+        send(MA_QUEUE_URL, json).join();
     }
 
-    private int getActiveInstanceCount(String tagValue) {
-        // Count EC2 instances in RUNNING or PENDING state, optionally filtered by tag
-        try {
-            Filter runningFilter = Filter.builder()
-                    .name("instance-state-name")
-                    .values(InstanceStateName.RUNNING.toString(), InstanceStateName.PENDING.toString()) // Include //
-                                                                                                        // PENDING
-                    .build();
-
-            DescribeInstancesRequest request;
-
-            if (tagValue != null) {
-                Filter tagFilter = Filter.builder()
-                        .name("tag:" + WORKER_TAG_KEY)
-                        .values(tagValue)
-                        .build();
-                request = DescribeInstancesRequest.builder().filters(runningFilter, tagFilter).build();
-            } else {
-                request = DescribeInstancesRequest.builder().filters(runningFilter).build();
+    // ==== RECOVERY ====
+
+    // Rebuilds jobs from the journal, then carries on: unfinished input is read from where
+    // dispatch stopped, complete shards are merged and complete jobs are finalized. Tasks
+    // already on MWQ and results already on WMQ survive a restart on their own.
+    private void recover() {
+        long start = System.currentTimeMillis();
+        int records = journal.replay(this::applyRecord);
+        journal.open(this::writeSnapshot, JOURNAL_SNAPSHOT_SECONDS);
+        if (records == 0)
+            return;
+
+        for (ShardedResult shard : new ArrayList<>(shardResults.values())) {
+            ManagerJob job = activeJobs.get(shard.jobId);
+            if (job != null && shard.complete())
+                completeShard(shardKey(shard.jobId, shard.taskIndex, shard.analysis, shard.url), shard, job);
+        }
+        for (ManagerJob job : activeJobs.values()) {
+            if (!job.isSealed())
+                taskExecutor.submit(() -> ingest(job.getJobId(), job, job.getDispatched()));
+            else
+                maybeFinalize(job.getJobId(), job);
+        }
+        System.out.println("[Manager] Recovered " + activeJobs.size() + " active jobs from " + records
+                + " journal records in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Journal records (tab-separated, first field is the kind):
+    //   J jobId receiptHandle outputFile inputS3      job accepted, or its LMQ message seen again
+    //   D jobId lines                                 input lines confirmed on MWQ so far
+    //   S jobId                                       whole input dispatched
+    //   R jobId task ok url analysis text stats       task result (text: result S3 URL or error)
+    //   P jobId task part parts ok url analysis text stats   part of a sharded task
+    //   T jobId stats                                 job statistics (snapshots only)
+    //   F jobId finishedAt                            job finished and reported
+    //   X jobId                                       job dropped before anything was sent
+    // Replaying a record twice is harmless, so the snapshot and the segment may overlap.
+    private void applyRecord(String[] f) {
+        String jobId = f[1];
+        if (f[0].equals("F")) {
+            activeJobs.remove(jobId);
+            jobResults.remove(jobId);
+            shardResults.values().removeIf(sr -> sr.jobId.equals(jobId));
+            // older journals wrote no time: count from the restart
+            finishedJobs.put(jobId, f.length > 2 && !f[2].isEmpty()
+                    ? Long.parseLong(f[2]) : System.currentTimeMillis());
+            return;
+        }
+        if (f[0].equals("X")) {
+            activeJobs.remove(jobId);
+            jobResults.remove(jobId);
+            return;
+        }
+        if (f[0].equals("J")) {
+            ManagerJob existing = activeJobs.get(jobId);
+            if (existing != null) {
+                existing.setLocalAppReceiptHandle(f[2]);
+            } else if (!finishedJobs.containsKey(jobId)) {
+                activeJobs.put(jobId, new ManagerJob(jobId, f[2], f[3], f[4], f.length > 5 ? f[5] : ""));
+                jobResults.put(jobId, newResultStore(jobId));
             }
+            return;
+        }
 
-            return (int) ec2.describeInstances(request).reservations().stream()
-                    .flatMap(r -> r.instances().stream())
-                    .count();
+        ManagerJob job = activeJobs.get(jobId);
+        if (job == null)
+            return; // record of a job that finished later on
+        switch (f[0]) {
+            case "D":
+                job.restoreDispatched(Math.max(job.getDispatched(), Integer.parseInt(f[2])));
+                break;
+            case "S":
+                job.seal();
+                break;
+            case "R": {
+                boolean ok = Boolean.parseBoolean(f[3]);
+                TaskResult r = ok ? new TaskResult(f[4], f[5], f[6], true, null)
+                        : new TaskResult(f[4], f[5], null, false, f[6]);
+                applyResult(jobId, job, Integer.parseInt(f[2]), r, decodeStats(f[7]));
+                break;
+            }
+            case "P": {
+                int taskIndex = Integer.parseInt(f[2]);
+                if (job.isDone(taskIndex))
+                    break;
+                boolean ok = Boolean.parseBoolean(f[5]);
+                ShardedResult shard = shardResults.computeIfAbsent(shardKey(jobId, taskIndex, f[7], f[6]),
+                        k -> new ShardedResult(jobId, taskIndex, f[6], f[7], Integer.parseInt(f[4])));
+                shard.add(Integer.parseInt(f[3]), ok ? f[8] : null, ok ? null : f[8], decodeStats(f[9]));
+                break;
+            }
+            case "T":
+                job.mergeStats(decodeStats(f[2]));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown journal record " + f[0]);
+        }
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error counting active instances: " + e.getMessage());
-            return 0;
+    // Compacted state: recently finished job ids, then every active job with its results and
+    // open shards. Finished ids past FINISHED_JOB_SECONDS are forgotten here.
+    private void writeSnapshot(Consumer<String[]> out) {
+        long forgetBefore = System.currentTimeMillis() - FINISHED_JOB_SECONDS * 1000;
+        finishedJobs.values().removeIf(finishedAt -> finishedAt < forgetBefore);
+        for (Map.Entry<String, Long> f : finishedJobs.entrySet()) {
+            out.accept(new String[] { "F", f.getKey(), String.valueOf(f.getValue()) });
+        }
+        for (ManagerJob job : activeJobs.values()) {
+            String jobId = job.getJobId();
+            out.accept(new String[] { "J", jobId, job.getLocalAppReceiptHandle(), job.getLocalAppOutputFile(),
+                    job.getInputS3(), job.getReplyQueue() });
+            out.accept(new String[] { "D", jobId, String.valueOf(job.getDispatched()) });
+            if (job.isSealed())
+                out.accept(new String[] { "S", jobId });
+            jobResults.get(jobId).forEachIndexed((taskIndex, r) -> out.accept(new String[] { "R", jobId,
+                    String.valueOf(taskIndex), String.valueOf(r.ok), r.url, r.analysis, r.ok ? r.resultS3 : r.error,
+                    "" }));
+            out.accept(new String[] { "T", jobId, encodeStats(job.getStats()) });
+        }
+        for (ShardedResult shard : shardResults.values()) {
+            if (shard.taskIndex < 0 || !activeJobs.containsKey(shard.jobId))
+                continue;
+            String stats = encodeStats(shard.stats()); // all parts' stats ride on the first one written
+            for (int part = 0; part < shard.parts(); part++) {
+                String result = shard.partResult(part);
+                if (result == null)
+                    continue;
+                boolean ok = !result.isEmpty() || shard.partError(part) == null;
+                out.accept(new String[] { "P", shard.jobId, String.valueOf(shard.taskIndex), String.valueOf(part),
+                        String.valueOf(shard.parts()), String.valueOf(ok), shard.url, shard.analysis,
+                        ok ? result : shard.partError(part), stats });
+                stats = "";
+            }
         }
     }
 
-    private List<String> getActiveInstanceIds(String tagValue) {
-        List<String> ids = new ArrayList<>();
+    private ResultStore newResultStore(String jobId) {
+        return new ResultStore("s3://" + S3_BUCKET_NAME + "/results/" + jobId + "/");
+    }
+
+    private static String encodeStats(CorpusStats stats) {
+        if (stats == null)
+            return "";
         try {
-            Filter runningFilter = Filter.builder()
-                    .name("instance-state-name")
-                    .values(InstanceStateName.RUNNING.toString(), InstanceStateName.PENDING.toString())
-                    .build();
-
-            Filter tagFilter = Filter.builder()
-                    .name("tag:" + WORKER_TAG_KEY)
-                    .values(tagValue)
-                    .build();
-
-            DescribeInstancesRequest request = DescribeInstancesRequest.builder()
-                    .filters(runningFilter, tagFilter)
-                    .build();
-
-            ec2.describeInstances(request).reservations().forEach(
-                    reservation -> reservation.instances().forEach(instance -> ids.add(instance.instanceId())));
+            return stats.encode();
         } catch (Exception e) {
-            System.err.println("Error fetching instance IDs: " + e.getMessage());
+            return "";
         }
-        return ids;
     }
 
-    private String retrieveInstanceId() {
+    private static CorpusStats decodeStats(String encoded) {
+        if (encoded == null || encoded.isEmpty())
+            return null;
         try {
-            HttpClient client = HttpClient.newHttpClient();
-
-            HttpRequest tokenReq = HttpRequest.newBuilder()
-                    .uri(URI.create("http://169.254.169.254/latest/api/token"))
-                    .header("X-aws-ec2-metadata-token-ttl-seconds", "21600")
-                    .method("PUT", HttpRequest.BodyPublishers.noBody())
-                    .build();
-
-            String token = client.send(tokenReq, HttpResponse.BodyHandlers.ofString()).body();
-            HttpRequest idReq = HttpRequest.newBuilder()
-                    .uri(URI.create("http://169.254.169.254/latest/meta-data/instance-id"))
-                    .header("X-aws-ec2-metadata-token", token)
-                    .GET()
-                    .build();
-
-            return client.send(idReq, HttpResponse.BodyHandlers.ofString()).body();
-
+            return CorpusStats.decode(encoded);
         } catch (Exception e) {
-            System.err.println("Failed to retrieve own instance ID via IMDSv2: " + e.getMessage());
+            System.err.println("[Manager] Ignoring unreadable stats in journal: " + e.getMessage());
             return null;
         }
     }
 
-    private void ensureWorkers(int desiredWorkers) {
-        // TODO: use EC2 API to count Role=Worker instances; if < desired and total < 19
-        // -> launch more
-        // attach IAM role, pass MWQ/WMQ/Bucket in user-data, tag Role=Worker
-        int currentWorkers = getActiveInstanceCount(WORKER_TAG_VALUE);
-        int totalInstances = getActiveInstanceCount(null);
-
-        int workersToLaunch = desiredWorkers - currentWorkers;
-
-        if (workersToLaunch <= 0) {
-            return;
-        }
+    // ==== QUEUE HELPERS ====
 
-        int availableSlots = MAX_TOTAL_INSTANCES - totalInstances;
-        int actualToLaunch = Math.min(workersToLaunch, availableSlots);
+    private List<Message> receiveMessages(String queueUrl, int maxMessages, int waitSeconds, int visibilityTimeout) {
+        return queues.receive(queueUrl, maxMessages, waitSeconds, visibilityTimeout); // long polling
+    }
 
-        if (actualToLaunch <= 0) {
-            System.out.println("[EC2] Cannot launch more workers. Reached max limit of " + MAX_TOTAL_INSTANCES);
-            return;
-        }
+    // Deletes are fire-and-forget: a lost delete only means the message is seen again later
+    private void deleteMessage(String queueUrl, String receiptHandle) {
+        queues.delete(queueUrl, receiptHandle).whenComplete((v, e) -> {
+            if (e != null)
+                System.err.println("[Manager] Delete from " + queueUrl + " failed: " + e.getMessage());
+        });
+    }
 
-        System.out.println("[EC2] Launching " + actualToLaunch + " new worker instances.");
+    private CompletableFuture<Void> send(String queueUrl, String body) {
+        return queues.send(queueUrl, body);
+    }
 
-        String workerArguments = String.join(" ", MW_QUEUE_URL, WM_QUEUE_URL, S3_BUCKET_NAME);
+    // ==== JOB/SHUTDOWN ====
 
-        String userDataScript = String.join("\n",
-                "#!/bin/bash",
-                "set -euxo pipefail",
-                "exec > /var/log/worker-boot.log 2>&1",
-                "yum update -y",
-                "yum install -y java-17-amazon-corretto-headless awscli jq",
-                "aws configure set default.region us-east-1",
-                (WORKER_JAR_URL.startsWith("s3://")
-                        ? "aws s3 cp \"" + WORKER_JAR_URL + "\" /home/ec2-user/app.jar"
-                        : "curl -L -o /home/ec2-user/app.jar \"" + WORKER_JAR_URL + "\""),
-                "chown ec2-user:ec2-user /home/ec2-user/app.jar",
-                // Run Worker
-                "nohup java -Xmx1500m -cp /home/ec2-user/app.jar " + WORKER_CLASS_NAME + " " + workerArguments
-                        + " > /var/log/worker.log 2>&1 &");
+    private boolean allJobsCompleted() {
+        // Jobs leave activeJobs only once finalizeJob has notified Local, so a job whose
+        // summary is still being built in the background keeps the manager alive
+        return activeJobs.isEmpty();
+    }
 
-        String userDataBase64 = Base64.getEncoder().encodeToString(userDataScript.getBytes(StandardCharsets.UTF_8));
+    private void terminateSystem() {
+        System.out.println("Terminating workers and this instance...");
 
         try {
-            RunInstancesRequest runRequest = RunInstancesRequest.builder()
-                    .instanceType(InstanceType.T2_SMALL)
-                    .imageId(AMI_ID)
-                    .maxCount(actualToLaunch)
-                    .minCount(actualToLaunch)
-                    .userData(userDataBase64)
-                    // .keyName(KEY_PAIR_NAME)
-                    .iamInstanceProfile(
-                            IamInstanceProfileSpecification.builder().name(INSTANCE_PROFILE_NAME).build()) // מנגנון IAM
-                                                                                                           // Role
-                    .tagSpecifications(TagSpecification.builder()
-                            .resourceType(ResourceType.INSTANCE)
-                            .tags(Tag.builder().key(WORKER_TAG_KEY).value(WORKER_TAG_VALUE).build())
-                            .build())
-                    .build();
-
-            ec2.runInstances(runRequest);
+            List<String> workerIds = new ArrayList<>();
+            for (ComputeProvider.Instance i : compute.list()) {
+                if (ComputeProvider.WORKER_ROLE.equals(i.role))
+                    workerIds.add(i.id);
+            }
+            if (!workerIds.isEmpty()) {
+                System.out.println("Terminating " + workerIds.size() + " workers...");
+                compute.terminate(workerIds);
+            }
+        } catch (Exception e) {
+            System.err.println("Error terminating workers: " + e.getMessage());
+        }
 
+        try {
+            String myId = compute.selfId();
+            if (myId != null) {
+                System.out.println("Terminating self: " + myId);
+                compute.terminate(List.of(myId));
+            }
         } catch (Exception e) {
-            System.err.println("Error launching Worker instances: " + e.getMessage());
+            System.err.println("Error terminating manager: " + e.getMessage());
         }
     }
 
+    // MWQ depth in one call: tasks waiting, and tasks a worker holds right now. SQS counts
+    // envelopes; the average envelope so far turns that into tasks.
+    private Autoscaler.Load mwqLoad() {
+        MessageQueue.Depth depth = queues.depth(MW_QUEUE_URL);
+        long envelopes = envelopesSent.get();
+        double perEnvelope = envelopes == 0 ? 1 : (double) tasksSent.get() / envelopes;
+        return new Autoscaler.Load((int) Math.ceil(depth.visible * perEnvelope),
+                (int) Math.ceil(depth.inFlight * perEnvelope));
+    }
+
     // ==== SIMPLE JSON UTILS ====
 
     private static String extract(String json, String key) {
@@ -503,6 +1044,23 @@ public class ManagerApplication {
         return s.replace("\\", "\\\\").replace("\"", "\\\"");
     }
 
+    // Parse time grows with document size; unknown sizes are assumed typical for the job
+    private static long medianLength(Collection<UrlProbe.Result> probes) {
+        long[] lengths = probes.stream().mapToLong(r -> r.length).filter(l -> l >= 0).sorted().toArray();
+        return lengths.length == 0 ? 0 : lengths[lengths.length / 2];
+    }
+
+    // A fan-out task and its estimated cost (bytes to parse)
+    private static final class PlannedTask {
+        final TaskMessage message;
+        final long cost;
+
+        PlannedTask(TaskMessage message, long cost) {
+            this.message = message;
+            this.cost = cost;
+        }
+    }
+
     // ==== RESULT DTO ====
 
     static class TaskResult {
@@ -1,22 +1,50 @@
 package manager;
 
+import common.CorpusStats;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ManagerJob {
     private final String jobId;
-    private final int totalSubtasks; // Total URLs sent to MWQ
-    private final String localAppReceiptHandle; // Handle of the message from LMQ (for cleanup)
+    private final AtomicInteger totalSubtasks; // Input lines dispatched to MWQ so far
+    private volatile boolean sealed; // set once the whole input file has been read
+    private volatile int dispatched; // input lines whose tasks are confirmed on MWQ
+    private volatile String localAppReceiptHandle; // Handle of the message from LMQ (for cleanup)
     private final String localAppOutputFile; // The expected output filename from LocalApplication args
+    private final String inputS3; // kept so a recovered manager can resume reading the input
+    private final String replyQueue; // the client's own queue for the done notice; blank: shared MAQ
 
     // AtomicInteger ensures thread-safe counting for concurrent Worker updates
     private final AtomicInteger completedTasks;
     private final AtomicInteger failedTasks;
 
-    public ManagerJob(String jobId, int totalSubtasks, String localAppReceiptHandle, String localAppOutputFile) {
+    // Task indexes that have a result; makes redelivered results no-ops
+    private final TaskBitmap done = new TaskBitmap();
+
+    // Set by whichever thread builds the summary, so a job is finalized exactly once; cleared
+    // again after a failed attempt so the retry can claim it
+    private final AtomicBoolean finalized = new AtomicBoolean(false);
+    private final AtomicInteger finalizeFailures = new AtomicInteger();
+    private final AtomicInteger ingestFailures = new AtomicInteger(); // resuming input after a restart
+
+    // Merged incrementally from the stats each document's first result carries
+    private final CorpusStats stats = new CorpusStats();
+
+    // Progress events: finished results not yet sent to the client, and the count last reported
+    private final ConcurrentLinkedQueue<String> unpublishedResults = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger publishedFinished = new AtomicInteger(-1);
+    private final long startedAt = System.currentTimeMillis(); // this manager's start on the job, for the ETA
+
+    public ManagerJob(String jobId, String localAppReceiptHandle, String localAppOutputFile, String inputS3,
+            String replyQueue) {
         this.jobId = jobId;
-        this.totalSubtasks = totalSubtasks;
+        this.totalSubtasks = new AtomicInteger(0);
         this.localAppReceiptHandle = localAppReceiptHandle;
         this.localAppOutputFile = localAppOutputFile;
+        this.inputS3 = inputS3;
+        this.replyQueue = replyQueue == null ? "" : replyQueue;
         this.completedTasks = new AtomicInteger(0);
         this.failedTasks = new AtomicInteger(0);
     }
@@ -29,14 +57,101 @@ public class ManagerJob {
         failedTasks.incrementAndGet();
     }
 
+    // Called before each window of tasks is sent, so results can never outrun the total
+    public void addSubtasks(int count) {
+        totalSubtasks.addAndGet(count);
+    }
+
+    public void markDispatched(int lines) {
+        dispatched = lines;
+    }
+
+    // Recovery: only lines confirmed on MWQ count, the rest of the input is read again
+    public void restoreDispatched(int lines) {
+        dispatched = lines;
+        totalSubtasks.set(lines);
+    }
+
+    public void seal() {
+        sealed = true;
+    }
+
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    // True for the first result of a task index only. Results without an index (-1) can't be
+    // deduplicated and always count.
+    public boolean claim(int taskIndex) {
+        return taskIndex < 0 || done.set(taskIndex);
+    }
+
+    public boolean isDone(int taskIndex) {
+        return taskIndex >= 0 && done.get(taskIndex);
+    }
+
+    public boolean markFinalized() {
+        return finalized.compareAndSet(false, true);
+    }
+
+    public void clearFinalized() {
+        finalized.set(false);
+    }
+
+    // Returns the failed attempts so far, this one included
+    public int addFinalizeFailure() {
+        return finalizeFailures.incrementAndGet();
+    }
+
+    public int addIngestFailure() {
+        return ingestFailures.incrementAndGet();
+    }
+
+    public void mergeStats(CorpusStats documentStats) {
+        stats.merge(documentStats);
+    }
+
     public boolean isCompleted() {
-        // A job is complete when all tasks (completed + failed) equal the total sent
-        // tasks
-        return (completedTasks.get() + failedTasks.get() == totalSubtasks);
+        // A job is complete when its input has been fully read and all tasks (completed +
+        // failed) equal the total sent tasks
+        return sealed && (completedTasks.get() + failedTasks.get() >= totalSubtasks.get());
+    }
+
+    public void addUnpublishedResult(String resultJson) {
+        unpublishedResults.add(resultJson);
+    }
+
+    // Null once everything was handed out
+    public String pollUnpublishedResult() {
+        return unpublishedResults.poll();
+    }
+
+    // True if tasks finished or results arrived since the last call that returned true
+    public boolean markProgressPublished() {
+        int finished = completedTasks.get() + failedTasks.get();
+        return publishedFinished.getAndSet(finished) != finished || !unpublishedResults.isEmpty();
+    }
+
+    // Seconds left at the rate seen so far, -1 while there is no rate yet
+    public long etaSeconds() {
+        int finished = completedTasks.get() + failedTasks.get();
+        long elapsed = System.currentTimeMillis() - startedAt;
+        if (finished == 0 || elapsed <= 0)
+            return -1;
+        int left = Math.max(0, totalSubtasks.get() - finished);
+        return (long) Math.ceil(left * (elapsed / 1000.0) / finished);
     }
 
     // --- Getters for Manager processing ---
 
+    public int getCompleted() {
+        return completedTasks.get();
+    }
+
+    public int getFailed() {
+        return failedTasks.get();
+    }
+
     public String getJobId() {
         return jobId;
     }
@@ -45,14 +160,35 @@ public class ManagerJob {
         return localAppReceiptHandle;
     }
 
+    // An LMQ message seen again gets a new handle; only the newest one can delete it
+    public void setLocalAppReceiptHandle(String receiptHandle) {
+        this.localAppReceiptHandle = receiptHandle;
+    }
+
+    public int getDispatched() {
+        return dispatched;
+    }
+
+    public String getInputS3() {
+        return inputS3;
+    }
+
     public int getTotalSubtasks() {
-        return totalSubtasks;
+        return totalSubtasks.get();
     }
 
     public String getLocalAppOutputFile() {
         return localAppOutputFile;
     }
 
+    public String getReplyQueue() {
+        return replyQueue;
+    }
+
+    public CorpusStats getStats() {
+        return stats;
+    }
+
     // You can add methods here to store the S3 links of the analyzed files for the
     // final HTML summary.
 }
\ No newline at end of file
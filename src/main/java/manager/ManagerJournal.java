@@ -0,0 +1,253 @@
+package manager;
+
+import common.Transports;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Append-only record of the manager's state changes, so a restarted manager can rebuild its
+ * jobs instead of losing them. Records are tab-separated lines (see ManagerApplication.applyRecord
+ * for the kinds) appended to a segment file and flushed one by one.
+ *
+ * Every few seconds the live state is written as a compacted snapshot and the segment starts over.
+ * With an S3 bucket configured the snapshot is also uploaded; a manager on a fresh instance
+ * then recovers from it alone, and actions that must not happen before a record is safe
+ * (deleting the WMQ message it came from) wait for that upload, see whenDurable.
+ *
+ * Writers hold guard() while they change state and append the matching record, so a
+ * snapshot never sees a change without its record or the other way round.
+ */
+class ManagerJournal {
+
+    interface Guard extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final Path snapshotFile;
+    private final Path segmentFile;
+    private final String s3Bucket; // null: local disk only
+    private final String s3Key; // per LMQ, so managers sharing a bucket never read each other's state
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "journal-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+    private Consumer<Consumer<String[]>> snapshotter; // writes every live record to the sink it is given
+    private BufferedWriter segment;
+    private long appended = 0; // records since the last snapshot
+    private List<Runnable> waitingForUpload = new ArrayList<>();
+
+    // `owner` names the manager's jobs, e.g. the LMQ it takes them from: a manager restarted
+    // for the same queue finds the snapshot again, any other manager uses a key of its own
+    ManagerJournal(Path dir, String s3Bucket, String owner) {
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.snapshotFile = dir.resolve("snapshot.tsv");
+        this.segmentFile = dir.resolve("journal.tsv");
+        this.s3Bucket = s3Bucket;
+        this.s3Key = "manager-journal/" + owner.replaceAll("[^A-Za-z0-9_.-]", "_") + "/snapshot.tsv";
+    }
+
+    // Feeds the last snapshot and then the segment written after it to the handler. Without a
+    // local snapshot the S3 copy is used, if there is one. Returns the number of records.
+    int replay(Consumer<String[]> handler) {
+        int records = 0;
+        try {
+            if (Files.exists(snapshotFile)) {
+                records += read(Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8), handler);
+            } else if (s3Bucket != null) {
+                InputStream in = Transports.blobs().open(s3Bucket, s3Key);
+                if (in != null) // none on the first start: nothing to recover
+                    records += read(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), handler);
+            }
+            if (Files.exists(segmentFile))
+                records += read(Files.newBufferedReader(segmentFile, StandardCharsets.UTF_8), handler);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return records;
+    }
+
+    // Compacts what replay() rebuilt into a fresh snapshot, then starts appending and
+    // checkpointing every periodSeconds
+    void open(Consumer<Consumer<String[]>> snapshotter, long periodSeconds) {
+        this.snapshotter = snapshotter;
+        checkpoint();
+        checkpoints.scheduleWithFixedDelay(() -> {
+            try {
+                if (pending())
+                    checkpoint();
+            } catch (Exception e) {
+                System.err.println("[Manager] Journal checkpoint failed: " + e.getMessage());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    Guard guard() {
+        lock.readLock().lock();
+        return () -> lock.readLock().unlock();
+    }
+
+    synchronized void append(String... fields) {
+        try {
+            segment.write(encode(fields));
+            segment.flush(); // in the OS as soon as it is written: survives a process crash
+            appended++;
+        } catch (IOException e) {
+            System.err.println("[Manager] Journal append failed: " + e.getMessage());
+        }
+    }
+
+    // Runs the action once every record appended so far would survive losing this instance:
+    // right away for a local-only journal, after the next snapshot upload otherwise
+    void whenDurable(Runnable action) {
+        if (s3Bucket == null) {
+            action.run();
+            return;
+        }
+        synchronized (this) {
+            waitingForUpload.add(action);
+        }
+    }
+
+    void checkpoint() {
+        List<Runnable> covered;
+        Path tmp = snapshotFile.resolveSibling("snapshot.tmp");
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    snapshotter.accept(fields -> {
+                        try {
+                            out.write(encode(fields));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+                Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (segment != null)
+                    segment.close();
+                segment = Files.newBufferedWriter(segmentFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                appended = 0;
+                covered = waitingForUpload;
+                waitingForUpload = new ArrayList<>();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (s3Bucket != null) {
+            try {
+                Transports.blobs().put(s3Bucket, s3Key, snapshotFile);
+            } catch (Exception e) {
+                // try again with the next snapshot; the actions stay queued until then
+                System.err.println("[Manager] Journal snapshot upload failed: " + e.getMessage());
+                synchronized (this) {
+                    waitingForUpload.addAll(0, covered);
+                }
+                return;
+            }
+        }
+        covered.forEach(Runnable::run);
+    }
+
+    void close() {
+        checkpoints.shutdown();
+        synchronized (this) {
+            try {
+                if (segment != null)
+                    segment.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private synchronized boolean pending() {
+        return appended > 0 || !waitingForUpload.isEmpty();
+    }
+
+    private static int read(BufferedReader reader, Consumer<String[]> handler) throws IOException {
+        int records = 0;
+        try (BufferedReader br = reader) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                try {
+                    handler.accept(decode(line));
+                    records++;
+                } catch (RuntimeException e) {
+                    // a torn last line after a crash, or a record the handler could not apply
+                    System.err.println("[Manager] Skipping journal record: " + e.getMessage());
+                }
+            }
+        }
+        return records;
+    }
+
+    // Fields are joined with tabs; tab, newline and backslash inside a field are escaped
+    private static String encode(String[] fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append('\t');
+            String f = fields[i] == null ? "" : fields[i];
+            for (int j = 0; j < f.length(); j++) {
+                char c = f.charAt(j);
+                switch (c) {
+                    case '\\': sb.append("\\\\"); break;
+                    case '\t': sb.append("\\t"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    default: sb.append(c);
+                }
+            }
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static String[] decode(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(cur.toString());
+                cur.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char n = line.charAt(++i);
+                cur.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                cur.append(c);
+            }
+        }
+        fields.add(cur.toString());
+        return fields.toArray(new String[0]);
+    }
+}
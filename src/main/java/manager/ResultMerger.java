@@ -0,0 +1,72 @@
+package manager;
+
+import common.BlobStore;
+import common.Transports;
+
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+// Concatenates the ordered part outputs of a sharded task into a single result object.
+// The parts are left in place: the caller deletes them once the merged result is journaled,
+// so a crash in between can still merge them again.
+class ResultMerger {
+
+    static String concat(String bucket, String targetKey, String[] partS3Urls) {
+        BlobStore blobs = Transports.blobs();
+
+        List<String[]> parts = new ArrayList<>(); // {bucket, key}
+        long total = 0;
+        for (String url : partS3Urls) {
+            String[] bk = BlobStore.splitUrl(url);
+            parts.add(bk);
+            long size = blobs.size(bk[0], bk[1]);
+            if (size < 0)
+                throw new IllegalStateException("Missing part " + url);
+            total += size;
+        }
+
+        // Parts are opened one at a time as the upload reads through them, so memory stays flat.
+        // (A multipart UploadPartCopy would avoid the copy, but S3 needs >= 5 MB per copied part.)
+        Enumeration<InputStream> streams = new Enumeration<>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < parts.size();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                String[] bk = parts.get(next++);
+                InputStream in = blobs.open(bk[0], bk[1]);
+                if (in == null)
+                    throw new IllegalStateException("Part vanished: " + BlobStore.url(bk[0], bk[1]));
+                return in;
+            }
+        };
+        try (InputStream merged = new SequenceInputStream(streams)) {
+            blobs.put(bucket, targetKey, merged, total);
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("Failed merging parts into " + targetKey + ": " + e.getMessage(), e);
+        }
+        return BlobStore.url(bucket, targetKey);
+    }
+
+    // Deletes the parts that live in `bucket`; a failure only leaves garbage behind
+    static void deleteParts(String bucket, String[] partS3Urls) {
+        try {
+            List<String> keys = new ArrayList<>();
+            for (String url : partS3Urls) {
+                String[] bk = BlobStore.splitUrl(url);
+                if (bk[0].equals(bucket))
+                    keys.add(bk[1]);
+            }
+            Transports.blobs().delete(bucket, keys);
+        } catch (Exception e) {
+            System.err.println("[Manager] Could not delete merged parts in " + bucket + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package manager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Per-job result storage sized for jobs with millions of tasks. Instead of one object per
+ * task, results are appended in arrival order to a few growable byte columns:
+ *
+ *   index - varint task index
+ *   kind  - varint (analysis id << 2 | prefixed << 1 | ok), analysis types are dictionary-encoded
+ *   url   - varint (length + 1) then UTF-8; 0 means "same URL as the previous result"
+ *   text  - varint length then UTF-8: the result S3 URL without the job's common prefix, or the error
+ *
+ * Only the first result per task is stored (ManagerJob.claim filters redeliveries). Appends are
+ * O(1) amortized; iteration decodes one result at a time from a snapshot, so it can run while
+ * results still arrive.
+ */
+class ResultStore implements Iterable<ManagerApplication.TaskResult> {
+
+    interface Visitor {
+        void visit(int taskIndex, ManagerApplication.TaskResult result);
+    }
+
+    private final String prefix; // shared start of result URLs, e.g. s3://bucket/results/<jobId>/
+    private final List<String> analyses = new ArrayList<>(); // dictionary id -> analysis type
+    private final Map<String, Integer> analysisIds = new HashMap<>();
+
+    private final ByteColumn index = new ByteColumn();
+    private final ByteColumn kind = new ByteColumn();
+    private final ByteColumn url = new ByteColumn();
+    private final ByteColumn text = new ByteColumn();
+    private int size = 0;
+    private String lastUrl;
+
+    ResultStore(String prefix) {
+        this.prefix = prefix;
+    }
+
+    synchronized void add(int taskIndex, ManagerApplication.TaskResult r) {
+        Integer id = analysisIds.get(r.analysis);
+        if (id == null) {
+            id = analyses.size();
+            analyses.add(r.analysis);
+            analysisIds.put(r.analysis, id);
+        }
+        String t = r.ok ? r.resultS3 : r.error;
+        if (t == null)
+            t = "";
+        boolean prefixed = r.ok && t.startsWith(prefix);
+        if (prefixed)
+            t = t.substring(prefix.length());
+
+        index.writeVarint(Math.max(taskIndex, -1) + 1L); // -1 (no index) stored as 0
+        kind.writeVarint(((long) id << 2) | (prefixed ? 2 : 0) | (r.ok ? 1 : 0));
+        if (r.url.equals(lastUrl)) {
+            url.writeVarint(0);
+        } else {
+            byte[] u = r.url.getBytes(StandardCharsets.UTF_8);
+            url.writeVarint(u.length + 1L);
+            url.write(u);
+            lastUrl = r.url;
+        }
+        byte[] b = t.getBytes(StandardCharsets.UTF_8);
+        text.writeVarint(b.length);
+        text.write(b);
+        size++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    // Heap held by the encoded columns
+    synchronized long bytes() {
+        return index.data.length + kind.data.length + url.data.length + text.data.length;
+    }
+
+    @Override
+    public Iterator<ManagerApplication.TaskResult> iterator() {
+        Reader reader = reader();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return reader.hasNext();
+            }
+
+            @Override
+            public ManagerApplication.TaskResult next() {
+                if (!reader.hasNext())
+                    throw new NoSuchElementException();
+                return reader.next();
+            }
+        };
+    }
+
+    // Like iteration, with each result's task index (-1 if it had none)
+    void forEachIndexed(Visitor visitor) {
+        Reader reader = reader();
+        while (reader.hasNext()) {
+            ManagerApplication.TaskResult r = reader.next();
+            visitor.visit(reader.taskIndex, r);
+        }
+    }
+
+    // Columns only ever grow past what is captured here, so the snapshot stays valid unlocked
+    private synchronized Reader reader() {
+        return new Reader(size, analyses.toArray(new String[0]));
+    }
+
+    private final class Reader {
+        private final int count;
+        private final String[] dict;
+        private final Cursor idx = new Cursor(index.data);
+        private final Cursor k = new Cursor(kind.data);
+        private final Cursor u = new Cursor(url.data);
+        private final Cursor tx = new Cursor(text.data);
+        private int next = 0;
+        private String currentUrl;
+        int taskIndex;
+
+        Reader(int count, String[] dict) {
+            this.count = count;
+            this.dict = dict;
+        }
+
+        boolean hasNext() {
+            return next < count;
+        }
+
+        ManagerApplication.TaskResult next() {
+            next++;
+            taskIndex = (int) idx.readVarint() - 1;
+            long kv = k.readVarint();
+            int ulen = (int) u.readVarint();
+            if (ulen > 0)
+                currentUrl = u.readString(ulen - 1);
+            String t = tx.readString((int) tx.readVarint());
+
+            boolean ok = (kv & 1) != 0;
+            if ((kv & 2) != 0)
+                t = prefix + t;
+            String analysis = dict[(int) (kv >>> 2)];
+            return ok
+                    ? new ManagerApplication.TaskResult(currentUrl, analysis, t, true, null)
+                    : new ManagerApplication.TaskResult(currentUrl, analysis, null, false, t);
+        }
+    }
+
+    private static final class ByteColumn {
+        byte[] data = new byte[256];
+        int length = 0;
+
+        void writeVarint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                data[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[length++] = (byte) v;
+        }
+
+        void write(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, data, length, b.length);
+            length += b.length;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > data.length)
+                data = Arrays.copyOf(data, Math.max(length + extra, data.length * 2));
+        }
+    }
+
+    private static final class Cursor {
+        private final byte[] data;
+        private int pos = 0;
+
+        Cursor(byte[] data) {
+            this.data = data;
+        }
+
+        long readVarint() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        String readString(int len) {
+            String s = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}
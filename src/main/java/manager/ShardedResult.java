@@ -0,0 +1,71 @@
+package manager;
+
+import common.CorpusStats;
+
+// Collects the part results of one sharded (url, analysis) task until every part is in
+class ShardedResult {
+    final String jobId;
+    final int taskIndex;
+    final String url;
+    final String analysis;
+    private final String[] partResults; // s3:// url per part, "" for a failed part
+    private final String[] partErrors; // per failed part, for the journal
+    private int received = 0;
+    private String error; // first part failure, null if all ok
+    private final CorpusStats stats = new CorpusStats(); // merged from the accepted parts
+
+    ShardedResult(String jobId, int taskIndex, String url, String analysis, int parts) {
+        this.jobId = jobId;
+        this.taskIndex = taskIndex;
+        this.url = url;
+        this.analysis = analysis;
+        this.partResults = new String[parts];
+        this.partErrors = new String[parts];
+    }
+
+    // Returns true exactly once: when the last missing part arrives. Repeated parts are ignored.
+    synchronized boolean add(int part, String resultS3, String partError, CorpusStats partStats) {
+        if (part < 0 || part >= partResults.length || partResults[part] != null)
+            return false;
+        if (partStats != null)
+            stats.merge(partStats);
+        partResults[part] = partError == null ? resultS3 : "";
+        partErrors[part] = partError;
+        if (partError != null && error == null)
+            error = "part " + part + ": " + partError;
+        return ++received == partResults.length;
+    }
+
+    synchronized boolean complete() {
+        return received == partResults.length;
+    }
+
+    int parts() {
+        return partResults.length;
+    }
+
+    // null if the part has not arrived yet
+    synchronized String partResult(int part) {
+        return partResults[part];
+    }
+
+    synchronized String partError(int part) {
+        return partErrors[part];
+    }
+
+    synchronized boolean ok() {
+        return error == null;
+    }
+
+    synchronized String error() {
+        return error;
+    }
+
+    CorpusStats stats() {
+        return stats;
+    }
+
+    synchronized String[] partResults() {
+        return partResults.clone();
+    }
+}
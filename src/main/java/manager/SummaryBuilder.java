@@ -1,17 +1,46 @@
 package manager;
 
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import common.CorpusStats;
+import common.Transports;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 
+// The summary of a job of millions of tasks runs to hundreds of MB, so it is written to a
+// temp file row by row and uploaded from there instead of being built in memory
 class SummaryBuilder {
 
-    static String buildAndUpload(String bucket, String jobId, List<ManagerApplication.TaskResult> results) {
-        StringBuilder html = new StringBuilder();
+    static String buildAndUpload(String bucket, String jobId, Iterable<ManagerApplication.TaskResult> results,
+            CorpusStats stats) {
+        Path file = null;
+        try {
+            file = Files.createTempFile("summary-", ".html"); // the extension sets the content type
+            try (Writer html = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                write(html, jobId, results, stats);
+            }
+            String key = "summaries/" + jobId + ".html";
+            Transports.blobs().put(bucket, key, file);
+            return "s3://" + bucket + "/" + key;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void write(Writer html, String jobId, Iterable<ManagerApplication.TaskResult> results,
+            CorpusStats stats) throws IOException {
         html.append("<!doctype html><html><head><meta charset=\"utf-8\">")
             .append("<title>Summary ").append(escape(jobId)).append("</title>")
             .append("<style>body{font-family:sans-serif}table{border-collapse:collapse}td,th{border:1px solid #ddd;padding:6px}</style>")
@@ -22,7 +51,7 @@ class SummaryBuilder {
         int i = 1;
         for (ManagerApplication.TaskResult r : results) {
             html.append("<tr>");
-            html.append("<td>").append(i++).append("</td>");
+            html.append("<td>").append(String.valueOf(i++)).append("</td>");
             html.append("<td>").append(escape(r.analysis)).append("</td>");
             html.append("<td><a href=\"").append(escape(r.url)).append("\">link</a></td>");
             if (r.ok) {
@@ -34,15 +63,42 @@ class SummaryBuilder {
             }
             html.append("</tr>");
         }
-        html.append("</table></body></html>");
-
-        String key = "summaries/" + jobId + ".html";
-        S3Client s3 = S3Client.builder().region(Region.US_EAST_1).build();
-        s3.putObject(
-                PutObjectRequest.builder().bucket(bucket).key(key).contentType("text/html").build(),
-                RequestBody.fromBytes(html.toString().getBytes(StandardCharsets.UTF_8))
-        );
-        return "s3://" + bucket + "/" + key;
+        html.append("</table>");
+        appendStats(html, stats);
+        html.append("</body></html>");
+    }
+
+    private static void appendStats(Writer html, CorpusStats stats) throws IOException {
+        if (stats == null || stats.sentences() == 0)
+            return;
+        html.append("<h2>Corpus statistics</h2>");
+        html.append("<p>").append(String.valueOf(stats.sentences())).append(" sentences, ")
+            .append(String.valueOf(stats.tokens())).append(" tokens</p>");
+        appendCounts(html, "POS tag", stats.topTags(20));
+        appendCounts(html, "Dependency relation", stats.topRelations(20));
+        appendCounts(html, "Word (approx.)", stats.topWords(20));
+
+        html.append("<h3>Sentence length</h3><table><tr><th>Tokens</th><th>Sentences</th></tr>");
+        long[] lengths = stats.lengthHistogram();
+        for (int i = 0; i < lengths.length; i++) {
+            int from = i * CorpusStats.LENGTH_BUCKET;
+            String range = i == lengths.length - 1 ? from + "+" : from + "-" + (from + CorpusStats.LENGTH_BUCKET - 1);
+            html.append("<tr><td>").append(range).append("</td><td>").append(String.valueOf(lengths[i])).append("</td></tr>");
+        }
+        html.append("</table>");
+    }
+
+    private static void appendCounts(Writer html, String title, List<Map.Entry<String, Long>> counts)
+            throws IOException {
+        if (counts.isEmpty())
+            return; // e.g. no relations when no task asked for DEPENDENCY
+        html.append("<h3>").append(escape(title)).append("</h3>");
+        html.append("<table><tr><th>").append(escape(title)).append("</th><th>Count</th></tr>");
+        for (Map.Entry<String, Long> e : counts) {
+            html.append("<tr><td>").append(escape(e.getKey())).append("</td><td>")
+                .append(String.valueOf(e.getValue())).append("</td></tr>");
+        }
+        html.append("</table>");
     }
 
     private static String escape(String s) {
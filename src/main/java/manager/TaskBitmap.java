@@ -0,0 +1,39 @@
+package manager;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Lock-free set of task indexes. The job's size is not known while its input is still being
+// streamed, so bits live in 64 Ki-bit pages created on first use; the page directory covers
+// every non-negative int.
+class TaskBitmap {
+
+    private static final int PAGE_BITS = 1 << 16;
+    private static final int PAGE_WORDS = PAGE_BITS / 64;
+
+    private final AtomicReferenceArray<AtomicLongArray> pages =
+            new AtomicReferenceArray<>((int) ((1L << 31) / PAGE_BITS));
+
+    // Sets the bit; true only for the one caller that actually flipped it
+    boolean set(int index) {
+        AtomicLongArray page = pages.get(index / PAGE_BITS);
+        if (page == null) {
+            pages.compareAndSet(index / PAGE_BITS, null, new AtomicLongArray(PAGE_WORDS));
+            page = pages.get(index / PAGE_BITS);
+        }
+        int word = (index % PAGE_BITS) >>> 6;
+        long bit = 1L << index;
+        while (true) {
+            long old = page.get(word);
+            if ((old & bit) != 0)
+                return false;
+            if (page.compareAndSet(word, old, old | bit))
+                return true;
+        }
+    }
+
+    boolean get(int index) {
+        AtomicLongArray page = pages.get(index / PAGE_BITS);
+        return page != null && (page.get((index % PAGE_BITS) >>> 6) & (1L << index)) != 0;
+    }
+}
@@ -0,0 +1,176 @@
+package manager;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+// HEAD probes for document size and byte-range support, run concurrently before fan-out.
+// Known sizes are kept in a small TSV file so later jobs skip the probe for documents seen before.
+// A cached size may be stale, so it only ever orders dispatch; byte ranges come from a fresh probe.
+class UrlProbe {
+
+    static final class Result {
+        static final Result UNKNOWN = new Result(-1, false);
+
+        final long length; // -1 if the server did not say
+        final boolean acceptsRanges;
+
+        Result(long length, boolean acceptsRanges) {
+            this.length = length;
+            this.acceptsRanges = acceptsRanges;
+        }
+    }
+
+    private static final HttpClient client = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private static final Path cacheFile = Paths.get(System.getenv().getOrDefault("SIZE_CACHE_FILE",
+            Paths.get(System.getProperty("java.io.tmpdir"), "url-sizes.tsv").toString()));
+    private static final ConcurrentHashMap<String, Result> known = new ConcurrentHashMap<>();
+
+    // Entries kept when the file is compacted; the file may grow to twice this between compactions
+    private static final int MAX_ENTRIES =
+            Integer.parseInt(System.getenv().getOrDefault("SIZE_CACHE_MAX_ENTRIES", "100000"));
+    private static int fileLines; // lines in cacheFile, guarded by UrlProbe.class
+
+    static {
+        try {
+            compact();
+        } catch (Exception e) {
+            System.err.println("[Manager] Size cache not loaded: " + e.getMessage());
+        }
+    }
+
+    // url \t length \t acceptsRanges, later lines win. Keeps the MAX_ENTRIES most recently
+    // written urls and, if that drops any line, rewrites the file with just those.
+    private static synchronized void compact() throws Exception {
+        if (!Files.exists(cacheFile))
+            return;
+        List<String> lines = Files.readAllLines(cacheFile, StandardCharsets.UTF_8);
+        LinkedHashMap<String, Result> latest = new LinkedHashMap<>();
+        for (String line : lines) {
+            String[] f = line.split("\t");
+            if (f.length != 3)
+                continue;
+            latest.remove(f[0]); // re-insert so the order follows the last write
+            latest.put(f[0], new Result(Long.parseLong(f[1]), Boolean.parseBoolean(f[2])));
+        }
+        Iterator<String> oldest = latest.keySet().iterator();
+        for (int excess = latest.size() - MAX_ENTRIES; excess > 0; excess--) {
+            oldest.next();
+            oldest.remove();
+        }
+        known.keySet().retainAll(latest.keySet());
+        known.putAll(latest);
+        fileLines = lines.size();
+        if (latest.size() == lines.size())
+            return;
+
+        List<String> kept = new ArrayList<>(latest.size());
+        for (Map.Entry<String, Result> e : latest.entrySet())
+            kept.add(e.getKey() + "\t" + e.getValue().length + "\t" + e.getValue().acceptsRanges);
+        Path tmp = Files.createTempFile(cacheFile.toAbsolutePath().getParent(), "url-sizes", ".tmp");
+        try {
+            Files.write(tmp, kept, StandardCharsets.UTF_8);
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        fileLines = kept.size();
+        System.out.println("[Manager] Size cache compacted from " + lines.size() + " to " + kept.size() + " lines");
+    }
+
+    // Cached sizes up to reprobeAbove bytes are used as-is. Larger ones would be sharded, so
+    // those documents are probed again: had one grown since, ranges cut at the cached length
+    // would silently drop its end. If that probe fails, the cached size still orders the task
+    // but no ranges are offered. Probes run with at most `concurrency` requests in flight;
+    // a failed or slow probe of an unknown document yields UNKNOWN.
+    static Map<String, Result> probeAll(Collection<String> urls, int concurrency, long reprobeAbove) {
+        Semaphore permits = new Semaphore(concurrency);
+        Map<String, CompletableFuture<Result>> pending = new LinkedHashMap<>();
+        Map<String, Result> fallbacks = new HashMap<>(); // stand-ins for failed re-probes, not remembered
+        for (String url : urls) {
+            Result cached = known.get(url);
+            if (cached != null && cached.length <= reprobeAbove) {
+                pending.put(url, CompletableFuture.completedFuture(cached));
+                continue;
+            }
+            Result fallback = cached == null ? Result.UNKNOWN : new Result(cached.length, false);
+            fallbacks.put(url, fallback);
+            permits.acquireUninterruptibly();
+            pending.put(url, head(url)
+                    .thenApply(r -> r.length >= 0 ? r : fallback)
+                    .exceptionally(t -> fallback)
+                    .whenComplete((r, e) -> permits.release()));
+        }
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        StringBuilder learned = new StringBuilder();
+        for (Map.Entry<String, CompletableFuture<Result>> e : pending.entrySet()) {
+            Result r = e.getValue().join();
+            results.put(e.getKey(), r);
+            if (r.length < 0 || r == fallbacks.get(e.getKey()) || e.getKey().indexOf('\t') >= 0)
+                continue;
+            Result old = known.put(e.getKey(), r);
+            if (old == null || old.length != r.length || old.acceptsRanges != r.acceptsRanges) {
+                learned.append(e.getKey()).append('\t').append(r.length).append('\t')
+                        .append(r.acceptsRanges).append('\n');
+            }
+        }
+        remember(learned.toString());
+        return results;
+    }
+
+    private static synchronized void remember(String lines) {
+        if (lines.isEmpty())
+            return;
+        try {
+            Files.write(cacheFile, lines.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            fileLines += (int) lines.chars().filter(c -> c == '\n').count();
+            if (fileLines > 2L * MAX_ENTRIES)
+                compact();
+        } catch (Exception e) {
+            System.err.println("[Manager] Size cache not updated: " + e.getMessage());
+        }
+    }
+
+    private static CompletableFuture<Result> head(String url) {
+        HttpRequest req;
+        try {
+            req = HttpRequest.newBuilder(URI.create(url))
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                    .timeout(Duration.ofSeconds(10))
+                    .build();
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(Result.UNKNOWN);
+        }
+        return client.sendAsync(req, HttpResponse.BodyHandlers.discarding()).thenApply(res -> {
+            if (res.statusCode() / 100 != 2)
+                return Result.UNKNOWN;
+            long length = res.headers().firstValueAsLong("Content-Length").orElse(-1);
+            boolean ranges = res.headers().firstValue("Accept-Ranges").map("bytes"::equalsIgnoreCase).orElse(false);
+            return new Result(length, ranges);
+        });
+    }
+}
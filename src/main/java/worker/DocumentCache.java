@@ -0,0 +1,327 @@
+package worker;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker-local LRU cache of downloaded documents, keyed by URL and bounded by total bytes.
+ * Each entry is a body file plus a small ".meta" sidecar (url, ETag, Last-Modified,
+ * fetch time), so the cache survives a worker restart.
+ */
+final class DocumentCache {
+
+    static final class Entry {
+        final String url;
+        final Path body;
+        final long size;
+        final String etag; // null if the server sent none
+        final String lastModified; // null if the server sent none
+        final long fetchedAt;
+
+        Entry(String url, Path body, long size, String etag, String lastModified, long fetchedAt) {
+            this.url = url;
+            this.body = body;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static final Path dir = Paths.get(System.getenv().getOrDefault("DOC_CACHE_DIR",
+            System.getProperty("java.io.tmpdir")), "doc-cache");
+    // DOC_CACHE_MB=0 disables the cache
+    private static final long maxBytes =
+            Long.parseLong(System.getenv().getOrDefault("DOC_CACHE_MB", "1024")) * 1024 * 1024;
+    // Entries younger than this are served without asking the origin at all
+    private static final long freshMillis =
+            Long.parseLong(System.getenv().getOrDefault("DOC_CACHE_FRESH_SECONDS", "300")) * 1000;
+
+    // access-ordered: iteration starts at the least recently used entry
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private static long totalBytes = 0;
+    private static final AtomicLong counter = new AtomicLong(System.currentTimeMillis());
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    static {
+        if (enabled()) {
+            try {
+                Files.createDirectories(dir);
+                loadIndex();
+                System.out.println("Document cache: " + dir + " (" + entries.size() + " entries, "
+                        + totalBytes / (1024 * 1024) + "/" + maxBytes / (1024 * 1024) + " MB)");
+            } catch (IOException e) {
+                System.err.println("Document cache index not loaded: " + e.getMessage());
+            }
+        }
+    }
+
+    private DocumentCache() {
+    }
+
+    static boolean enabled() {
+        return maxBytes > 0;
+    }
+
+    static long hits() {
+        return hits.get();
+    }
+
+    static long misses() {
+        return misses.get();
+    }
+
+    static synchronized Entry lookup(String url) {
+        return enabled() ? entries.get(url) : null;
+    }
+
+    static boolean isFresh(Entry e) {
+        return System.currentTimeMillis() - e.fetchedAt < freshMillis;
+    }
+
+    // Serves a cached body; counts as a hit. The file is opened under the lock, so an eviction
+    // cannot delete it in between (an open handle outlives the delete). null if the entry was
+    // evicted or replaced since the lookup: the caller fetches from the origin instead.
+    static InputStream open(Entry e) throws IOException {
+        InputStream in;
+        synchronized (DocumentCache.class) {
+            if (entries.get(e.url) != e)
+                return null;
+            try {
+                in = Files.newInputStream(e.body);
+            } catch (NoSuchFileException gone) {
+                entries.remove(e.url); // deleted behind the cache's back
+                drop(e);
+                return null;
+            }
+        }
+        hits.incrementAndGet();
+        return in;
+    }
+
+    // Re-stamps an entry the origin just confirmed with 304, then serves it; null as for open()
+    static InputStream revalidated(Entry e) throws IOException {
+        Entry touched = new Entry(e.url, e.body, e.size, e.etag, e.lastModified, System.currentTimeMillis());
+        synchronized (DocumentCache.class) {
+            if (entries.get(e.url) != e)
+                return null;
+            entries.put(e.url, touched);
+        }
+        writeMeta(touched);
+        return open(touched);
+    }
+
+    // Wraps a fresh origin body: bytes are copied to disk as the caller reads them and the
+    // entry is committed only once the stream was read to the end
+    static InputStream store(String url, InputStream origin, String etag, String lastModified)
+            throws IOException {
+        misses.incrementAndGet();
+        if (!enabled())
+            return origin;
+        Path body = dir.resolve(hash(url) + "-" + counter.incrementAndGet() + ".body");
+        return new CachingInputStream(origin, url, body, etag, lastModified);
+    }
+
+    // ==== INDEX ====
+
+    private static synchronized void commit(Entry e) {
+        if (e.size > maxBytes) {
+            deleteQuietly(e.body);
+            return;
+        }
+        try {
+            writeMeta(e);
+        } catch (IOException ex) {
+            deleteQuietly(e.body);
+            return;
+        }
+        Entry old = entries.put(e.url, e);
+        totalBytes += e.size;
+        if (old != null) {
+            // same URL: the sidecar was just rewritten for the new body, only the old body goes
+            totalBytes -= old.size;
+            if (!old.body.equals(e.body))
+                deleteQuietly(old.body);
+        }
+
+        Iterator<Entry> lru = entries.values().iterator();
+        while (totalBytes > maxBytes && lru.hasNext()) {
+            Entry victim = lru.next();
+            if (victim == e)
+                continue;
+            lru.remove();
+            drop(victim);
+        }
+    }
+
+    // Readers that already opened the body keep their file handle; only the name goes away
+    private static void drop(Entry e) {
+        totalBytes -= e.size;
+        deleteQuietly(e.body);
+        deleteQuietly(metaOf(e.url));
+    }
+
+    private static void loadIndex() throws IOException {
+        List<Entry> found = new ArrayList<>();
+        try (DirectoryStream<Path> metas = Files.newDirectoryStream(dir, "*.meta")) {
+            for (Path meta : metas) {
+                try {
+                    List<String> lines = Files.readAllLines(meta, StandardCharsets.UTF_8);
+                    Path body = dir.resolve(lines.get(1));
+                    if (!Files.exists(body)) {
+                        deleteQuietly(meta);
+                        continue;
+                    }
+                    found.add(new Entry(lines.get(0), body, Files.size(body),
+                            emptyToNull(lines.get(2)), emptyToNull(lines.get(3)), Long.parseLong(lines.get(4))));
+                } catch (Exception e) {
+                    deleteQuietly(meta);
+                }
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.fetchedAt, b.fetchedAt));
+        for (Entry e : found) {
+            commit(e);
+        }
+
+        // Bodies and temp files a crashed worker left without a committed sidecar
+        try (DirectoryStream<Path> orphans = Files.newDirectoryStream(dir, "*.{body,tmp}")) {
+            for (Path p : orphans) {
+                if (entries.values().stream().noneMatch(e -> e.body.equals(p)))
+                    deleteQuietly(p);
+            }
+        }
+    }
+
+    private static void writeMeta(Entry e) throws IOException {
+        String meta = String.join("\n", e.url, e.body.getFileName().toString(),
+                e.etag == null ? "" : e.etag, e.lastModified == null ? "" : e.lastModified,
+                String.valueOf(e.fetchedAt));
+        Path tmp = dir.resolve(hash(e.url) + "-" + counter.incrementAndGet() + ".tmp");
+        Files.write(tmp, meta.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, metaOf(e.url), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path metaOf(String url) {
+        return dir.resolve(hash(url) + ".meta");
+    }
+
+    private static String hash(String url) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                sb.append(Character.forDigit((d[i] >> 4) & 0xf, 16)).append(Character.forDigit(d[i] & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    private static void deleteQuietly(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (Exception ignored) {
+        }
+    }
+
+    // Tees the origin body into the cache file; a stream closed before EOF is discarded
+    private static final class CachingInputStream extends FilterInputStream {
+        private final String url;
+        private final Path body;
+        private final String etag;
+        private final String lastModified;
+        private OutputStream copy;
+        private long size = 0;
+        private boolean complete = false;
+
+        CachingInputStream(InputStream origin, String url, Path body, String etag, String lastModified)
+                throws IOException {
+            super(origin);
+            this.url = url;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.copy = Files.newOutputStream(body);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                complete = true;
+            } else if (copy != null) {
+                try {
+                    copy.write(b, off, n);
+                    size += n;
+                } catch (IOException e) {
+                    abandon(); // a full cache disk must not fail the task
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes would leave a hole in the copy
+            abandon();
+            return super.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (copy != null) {
+                    copy.close();
+                    copy = null;
+                    if (complete)
+                        commit(new Entry(url, body, size, etag, lastModified, System.currentTimeMillis()));
+                    else
+                        deleteQuietly(body);
+                }
+            }
+        }
+
+        private void abandon() {
+            if (copy == null)
+                return;
+            try {
+                copy.close();
+            } catch (IOException ignored) {
+            }
+            copy = null;
+            deleteQuietly(body);
+        }
+    }
+}
@@ -2,21 +2,160 @@ package worker;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 
 class HttpDownloader {
+
+    // One client for every download on this JVM: it pools connections and negotiates HTTP/2
+    private static final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(20))
+            .build();
+
+    // Bytes requested past a shard's end for the paragraph snap; more only if it runs past them
+    private static final long RANGE_SLACK = 64 * 1024;
+
     static void download(String url, Path to) throws IOException, InterruptedException {
-        HttpClient client = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NORMAL).build();
-        HttpRequest req = HttpRequest.newBuilder(URI.create(url)).GET().build();
-        HttpResponse<InputStream> res = client.send(req, HttpResponse.BodyHandlers.ofInputStream());
-        if (res.statusCode() / 100 != 2) throw new IOException("HTTP " + res.statusCode() + " for " + url);
-        try (InputStream in = res.body()) {
+        try (InputStream in = open(url)) {
             Files.copy(in, to, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
         }
     }
+
+    // Returns the document body, from the local cache when it is still valid, otherwise the
+    // live response body (copied into the cache as it is read). The caller must close it.
+    static InputStream open(String url) throws IOException, InterruptedException {
+        DocumentCache.Entry cached = DocumentCache.lookup(url);
+        if (cached != null && DocumentCache.isFresh(cached)) {
+            InputStream body = DocumentCache.open(cached);
+            if (body != null)
+                return body;
+            cached = null; // evicted since the lookup
+        }
+        InputStream body = fetch(url, cached);
+        // null: the origin confirmed a cached copy that was evicted meanwhile, so ask for the body
+        return body != null ? body : fetch(url, null);
+    }
+
+    // Conditional GET when there is a cached copy; null if that copy is gone by the time of a 304
+    private static InputStream fetch(String url, DocumentCache.Entry cached) throws IOException, InterruptedException {
+        HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(url)).GET();
+        if (cached != null && cached.etag != null)
+            req.header("If-None-Match", cached.etag);
+        if (cached != null && cached.lastModified != null)
+            req.header("If-Modified-Since", cached.lastModified);
+
+        HttpResponse<InputStream> res = client.send(req.build(), HttpResponse.BodyHandlers.ofInputStream());
+        if (res.statusCode() == 304 && cached != null) {
+            res.body().close();
+            return DocumentCache.revalidated(cached);
+        }
+        if (res.statusCode() / 100 != 2) {
+            res.body().close();
+            throw new IOException("HTTP " + res.statusCode() + " for " + url);
+        }
+        return DocumentCache.store(url, res.body(),
+                res.headers().firstValue("ETag").orElse(null),
+                res.headers().firstValue("Last-Modified").orElse(null));
+    }
+
+    // Paragraph-aligned slice [start, end) of the document, for sharded tasks. A fresh cached copy is
+    // sliced locally; otherwise only the bytes from just before start to a little past end are
+    // requested, so N shards of a document transfer it about once. Partial bodies are never
+    // written to the document cache.
+    static InputStream openRange(String url, long start, long end) throws IOException, InterruptedException {
+        DocumentCache.Entry cached = DocumentCache.lookup(url);
+        InputStream local = cached != null && DocumentCache.isFresh(cached) ? DocumentCache.open(cached) : null;
+        if (local != null) {
+            return new ShardInputStream(local, 0, start, end);
+        }
+
+        long origin = Math.max(0, start - ShardInputStream.LOOKBACK);
+        HttpResponse<InputStream> res = requestRange(url, origin, end + RANGE_SLACK);
+        if (res.statusCode() == 206) {
+            return new ShardInputStream(new RangeChain(url, res.body(), end + RANGE_SLACK), origin, start, end);
+        }
+        if (res.statusCode() / 100 == 2) {
+            // Server ignored the range: slice the full body instead
+            return new ShardInputStream(res.body(), 0, start, end);
+        }
+        res.body().close();
+        throw new IOException("HTTP " + res.statusCode() + " for " + url);
+    }
+
+    // bytes [from, to) of the document
+    private static HttpResponse<InputStream> requestRange(String url, long from, long to)
+            throws IOException, InterruptedException {
+        HttpRequest req = HttpRequest.newBuilder(URI.create(url)).GET()
+                .header("Range", "bytes=" + from + "-" + (to - 1))
+                .build();
+        return client.send(req, HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    // A bounded range body that goes on with the following bytes, in ranges twice as long each
+    // time, when the reader needs more than was requested. Ends with the document.
+    private static final class RangeChain extends InputStream {
+        private final String url;
+        private InputStream body;
+        private long next; // the first byte not requested yet
+        private long chunk = RANGE_SLACK;
+        private boolean ended;
+
+        RangeChain(String url, InputStream body, long next) {
+            this.url = url;
+            this.body = body;
+            this.next = next;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                int n = body.read(b, off, len);
+                if (n != -1 || ended)
+                    return n;
+                body.close();
+                body = continuation();
+            }
+        }
+
+        private InputStream continuation() throws IOException {
+            try {
+                HttpResponse<InputStream> res = requestRange(url, next, next + chunk);
+                if (res.statusCode() == 416) { // nothing left past `next`
+                    res.body().close();
+                    ended = true;
+                    return InputStream.nullInputStream();
+                }
+                if (res.statusCode() != 206) {
+                    res.body().close();
+                    throw new IOException("HTTP " + res.statusCode() + " for more of " + url);
+                }
+                next += chunk;
+                chunk *= 2;
+                return res.body();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted fetching " + url);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
 }
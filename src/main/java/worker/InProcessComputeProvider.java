@@ -0,0 +1,70 @@
+package worker;
+
+import common.ComputeProvider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Workers as threads of this JVM: each "instance" is a WorkerApplication with its own
+// pipeline, polling the same queues an EC2 worker would. At most maxWorkers run at once.
+public class InProcessComputeProvider implements ComputeProvider {
+
+    private static final class Running {
+        final WorkerApplication worker;
+        final long launchedAt;
+
+        Running(WorkerApplication worker, long launchedAt) {
+            this.worker = worker;
+            this.launchedAt = launchedAt;
+        }
+    }
+
+    private final String mwq;
+    private final String wmq;
+    private final String bucket;
+    private final int slotsPerWorker;
+    private final int maxWorkers;
+    private final Map<String, Running> workers = new LinkedHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+
+    public InProcessComputeProvider(String mwq, String wmq, String bucket, int slotsPerWorker, int maxWorkers) {
+        this.mwq = mwq;
+        this.wmq = wmq;
+        this.bucket = bucket;
+        this.slotsPerWorker = slotsPerWorker;
+        this.maxWorkers = maxWorkers;
+    }
+
+    @Override
+    public synchronized List<Instance> list() {
+        List<Instance> live = new ArrayList<>();
+        workers.forEach((id, r) -> live.add(new Instance(id, WORKER_ROLE, true, r.launchedAt)));
+        return live;
+    }
+
+    @Override
+    public synchronized int launchWorkers(int count) {
+        int launched = Math.max(0, Math.min(count, maxWorkers - workers.size()));
+        for (int i = 0; i < launched; i++) {
+            String id = "local-worker-" + ids.incrementAndGet();
+            WorkerApplication worker = new WorkerApplication(mwq, wmq, bucket, slotsPerWorker);
+            Thread t = new Thread(worker::run, id);
+            t.setDaemon(true);
+            t.start();
+            workers.put(id, new Running(worker, System.currentTimeMillis()));
+        }
+        return launched;
+    }
+
+    @Override
+    public synchronized void terminate(List<String> ids) {
+        for (String id : ids) {
+            Running r = workers.remove(id);
+            if (r != null)
+                r.worker.stop();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package worker;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Runs a document's sentences on a shared pool with at most `window` in flight and hands the
+// results on in submission order. Futures are queued in order and only the head is drained,
+// so a sentence that finishes early waits for the ones before it.
+final class OrderedWindow<R> implements AutoCloseable {
+
+    interface Sink<R> {
+        void accept(R result) throws IOException;
+    }
+
+    private final ExecutorService pool;
+    private final int window;
+    private final Sink<R> sink;
+    private final Deque<Future<R>> pending = new ArrayDeque<>();
+
+    OrderedWindow(ExecutorService pool, int window, Sink<R> sink) {
+        this.pool = pool;
+        this.window = window;
+        this.sink = sink;
+    }
+
+    // Blocks on the oldest sentence once the window is full
+    void submit(Callable<R> work) throws IOException {
+        pending.add(pool.submit(work));
+        if (pending.size() >= window) {
+            sink.accept(await(pending.poll()));
+        }
+    }
+
+    void drain() throws IOException {
+        while (!pending.isEmpty()) {
+            sink.accept(await(pending.poll()));
+        }
+    }
+
+    // Cancels whatever was not drained, e.g. after a failed write
+    @Override
+    public void close() {
+        for (Future<R> f : pending) {
+            f.cancel(true);
+        }
+        pending.clear();
+    }
+
+    private static <R> R await(Future<R> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Sentence parse failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
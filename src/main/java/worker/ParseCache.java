@@ -0,0 +1,427 @@
+package worker;
+
+import common.BlobStore;
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.trees.Tree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content-addressed cache of parse trees, keyed by SHA-256 of the model id and the
+ * sentence tokens. Entries live in a fixed-size memory-mapped file laid out as a
+ * 2-way set-associative table: the file size is the bound, and inserting into a full
+ * set evicts its older entry. Trees are stored as deflated bracketed strings.
+ *
+ * An optional S3 tier lets the whole fleet share parses. It holds one object per document
+ * (all of its trees, by sentence key), fetched once when the document is opened and written
+ * back in the background when it is closed, so no sentence waits on an S3 round trip.
+ */
+final class ParseCache {
+
+    // ===== slot layout: key(32) stamp(8) crc(4) len(4) payload =====
+    private static final int KEY_BYTES = 32;
+    private static final int HEADER_BYTES = KEY_BYTES + 8 + 4 + 4;
+    private static final int SLOT_BYTES = 4096;
+    private static final int MAX_PAYLOAD = SLOT_BYTES - HEADER_BYTES;
+    private static final int WAYS = 2;
+    private static final String S3_PREFIX = "parse-cache/";
+    private static final long PACK_WAIT_MS = 500; // how long a document's first lookup waits for its S3 object
+    private static final int MAX_PACK_BYTES = 32 * 1024 * 1024;
+
+    private static final MappedByteBuffer index; // null when the local tier is disabled
+    private static final int sets;
+    private static final Object[] locks = new Object[256];
+    private static final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    // ===== optional shared S3 tier =====
+    private static volatile BlobStore s3;
+    private static volatile String s3Bucket;
+    // Best-effort background uploads: when the queue is full new entries are simply not shared
+    private static final ExecutorService s3Writes = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(100), r -> {
+                Thread t = new Thread(r, "parse-cache-s3");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+    private static final ExecutorService s3Reads = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "parse-cache-s3-read");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
+        // PARSE_CACHE_MB=0 disables the local tier; a single mapping is capped below 2 GB
+        long mb = Math.min(2047, Long.parseLong(System.getenv().getOrDefault("PARSE_CACHE_MB", "256")));
+        Path file = Paths.get(System.getenv().getOrDefault("PARSE_CACHE_DIR",
+                System.getProperty("java.io.tmpdir")), "parse-cache.bin");
+        MappedByteBuffer mapped = null;
+        int setCount = 0;
+        if (mb > 0) {
+            setCount = (int) (mb * 1024 * 1024 / (SLOT_BYTES * WAYS));
+            try {
+                Files.createDirectories(file.getParent());
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    // The mapping stays valid after the channel is closed
+                    mapped = ch.map(FileChannel.MapMode.READ_WRITE, 0, (long) setCount * WAYS * SLOT_BYTES);
+                }
+                System.out.println("Parse cache: " + file + " (" + mb + " MB, " + setCount * WAYS + " slots)");
+            } catch (Exception e) {
+                System.err.println("Parse cache disabled, cannot map " + file + ": " + e.getMessage());
+                mapped = null;
+            }
+        }
+        index = mapped;
+        sets = setCount;
+    }
+
+    private ParseCache() {
+    }
+
+    static void attachS3(BlobStore client, String bucket) {
+        s3 = client;
+        s3Bucket = bucket;
+        System.out.println("Parse cache: shared tier at s3://" + bucket + "/" + S3_PREFIX);
+    }
+
+    // False when both tiers are off: callers then skip the key and the lookup altogether
+    static boolean enabled() {
+        return index != null || s3 != null;
+    }
+
+    static long hits() {
+        return hits.get();
+    }
+
+    static long misses() {
+        return misses.get();
+    }
+
+    private static byte[] key(String modelId, String documentId) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(modelId.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+            sha.update(documentId.getBytes(StandardCharsets.UTF_8));
+            return sha.digest();
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    static byte[] key(String modelId, List<HasWord> sentence) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(modelId.getBytes(StandardCharsets.UTF_8));
+            for (HasWord w : sentence) {
+                sha.update((byte) 0);
+                sha.update(w.word().getBytes(StandardCharsets.UTF_8));
+            }
+            return sha.digest();
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    // One document's view of the cache. documentId (e.g. its URL and byte range) names its S3
+    // object; null keeps the document to the local tier.
+    static Document open(String modelId, String documentId) {
+        return new Document(s3 != null && documentId != null ? S3_PREFIX + hex(key(modelId, documentId)) : null);
+    }
+
+    static final class Document implements AutoCloseable {
+        private final String s3Key; // null: local tier only
+        private final CompletableFuture<Map<ByteBuffer, byte[]>> shared; // the document's trees on S3
+        private final Map<ByteBuffer, byte[]> parsed = new ConcurrentHashMap<>(); // new trees to share
+        private volatile boolean sharedLate;
+
+        private Document(String s3Key) {
+            this.s3Key = s3Key;
+            this.shared = s3Key == null ? null : CompletableFuture.supplyAsync(() -> readPack(s3Key), s3Reads);
+        }
+
+        // Returns the cached tree, or null on a miss. Parser threads call it concurrently.
+        Tree get(byte[] key) {
+            Tree tree = decode(readLocal(key));
+            if (tree == null) {
+                Map<ByteBuffer, byte[]> pack = shared();
+                byte[] payload = pack == null ? null : pack.get(ByteBuffer.wrap(key));
+                tree = decode(payload);
+                if (tree != null)
+                    writeLocal(key, payload);
+            }
+            (tree != null ? hits : misses).incrementAndGet();
+            return tree;
+        }
+
+        void put(byte[] key, Tree tree) {
+            byte[] payload = encode(tree);
+            if (payload == null)
+                return;
+            writeLocal(key, payload);
+            if (s3Key != null)
+                parsed.put(ByteBuffer.wrap(key), payload);
+        }
+
+        // Shares the trees parsed for this document, in the background
+        @Override
+        public void close() {
+            if (s3Key == null || parsed.isEmpty())
+                return;
+            s3Writes.execute(() -> {
+                Map<ByteBuffer, byte[]> pack = new LinkedHashMap<>(shared.join()); // keeps what others shared
+                pack.putAll(parsed);
+                writePack(s3Key, pack);
+            });
+        }
+
+        // The S3 object, waited for once: a fetch slower than that is not waited for again
+        private Map<ByteBuffer, byte[]> shared() {
+            if (shared == null)
+                return null;
+            Map<ByteBuffer, byte[]> pack = shared.getNow(null);
+            if (pack != null || sharedLate)
+                return pack;
+            try {
+                return shared.get(PACK_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                sharedLate = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+
+    // ==== LOCAL TIER ====
+
+    private static byte[] readLocal(byte[] key) {
+        if (index == null)
+            return null;
+        int set = setOf(key);
+        synchronized (locks[set % locks.length]) {
+            for (int w = 0; w < WAYS; w++) {
+                int off = (set * WAYS + w) * SLOT_BYTES;
+                if (!keyAt(off, key))
+                    continue;
+                int crc = index.getInt(off + KEY_BYTES + 8);
+                int len = index.getInt(off + KEY_BYTES + 12);
+                if (len <= 0 || len > MAX_PAYLOAD)
+                    return null;
+                byte[] payload = new byte[len];
+                index.get(off + HEADER_BYTES, payload);
+                index.putLong(off + KEY_BYTES, clock.incrementAndGet()); // touch for LRU
+                return crc(payload) == crc ? payload : null;
+            }
+        }
+        return null;
+    }
+
+    private static void writeLocal(byte[] key, byte[] payload) {
+        if (index == null || payload.length > MAX_PAYLOAD)
+            return;
+        int set = setOf(key);
+        synchronized (locks[set % locks.length]) {
+            // Reuse the slot holding this key, else take the least recently used way
+            int victim = -1;
+            long oldest = Long.MAX_VALUE;
+            for (int w = 0; w < WAYS; w++) {
+                int off = (set * WAYS + w) * SLOT_BYTES;
+                if (keyAt(off, key)) {
+                    victim = off;
+                    break;
+                }
+                long stamp = index.getLong(off + KEY_BYTES);
+                if (stamp < oldest) {
+                    oldest = stamp;
+                    victim = off;
+                }
+            }
+            index.put(victim, key);
+            index.putLong(victim + KEY_BYTES, clock.incrementAndGet());
+            index.putInt(victim + KEY_BYTES + 8, crc(payload));
+            index.putInt(victim + KEY_BYTES + 12, payload.length);
+            index.put(victim + HEADER_BYTES, payload);
+        }
+    }
+
+    private static int setOf(byte[] key) {
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (key[i] & 0xff);
+        }
+        return (int) Math.floorMod(h, (long) sets);
+    }
+
+    private static boolean keyAt(int off, byte[] key) {
+        byte[] stored = new byte[KEY_BYTES];
+        index.get(off, stored);
+        return Arrays.equals(stored, key);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    // ==== S3 TIER ====
+
+    // pack: count, then per tree its 32-byte key, payload length and payload
+    private static Map<ByteBuffer, byte[]> readPack(String s3Key) {
+        Map<ByteBuffer, byte[]> pack = new HashMap<>();
+        try {
+            byte[] data = s3.read(s3Bucket, s3Key); // null: no tree of this document is shared yet
+            if (data == null)
+                return pack;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[KEY_BYTES];
+                in.readFully(key);
+                int len = in.readInt();
+                if (len <= 0 || len > MAX_PAYLOAD)
+                    throw new IOException("Tree of " + len + " bytes");
+                byte[] payload = new byte[len];
+                in.readFully(payload);
+                pack.put(ByteBuffer.wrap(key), payload);
+            }
+        } catch (Exception e) {
+            System.err.println("[ParseCache] S3 read failed: " + e.getMessage());
+        }
+        return pack;
+    }
+
+    private static void writePack(String s3Key, Map<ByteBuffer, byte[]> pack) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int count = 0;
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream entry = new DataOutputStream(entries);
+            for (Map.Entry<ByteBuffer, byte[]> e : pack.entrySet()) {
+                if (entries.size() + KEY_BYTES + 4 + e.getValue().length > MAX_PACK_BYTES)
+                    break; // a very long book shares its first trees only
+                entry.write(e.getKey().array());
+                entry.writeInt(e.getValue().length);
+                entry.write(e.getValue());
+                count++;
+            }
+            out.writeInt(count);
+            entries.writeTo(out);
+            out.flush();
+            s3.put(s3Bucket, s3Key, bytes.toByteArray(), null);
+        } catch (Exception e) {
+            System.err.println("[ParseCache] S3 write failed: " + e.getMessage());
+        }
+    }
+
+    private static String hex(byte[] key) {
+        StringBuilder sb = new StringBuilder(key.length * 2);
+        for (byte b : key) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // ==== TREE CODEC ====
+
+    private static byte[] encode(Tree tree) {
+        StringBuilder sb = new StringBuilder();
+        if (!bracket(tree, sb))
+            return null;
+        byte[] raw = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + 16);
+        byte[] buf = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static Tree decode(byte[] payload) {
+        if (payload == null)
+            return null;
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buf = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    return null;
+                out.write(buf, 0, n);
+            }
+            return Tree.valueOf(out.toString(StandardCharsets.UTF_8));
+        } catch (DataFormatException | RuntimeException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Penn-style "(ROOT (S (NP ...)))"; false if a label would not survive the round trip
+    private static boolean bracket(Tree t, StringBuilder sb) {
+        String value = t.label() == null ? null : t.label().value();
+        if (value == null || value.isEmpty()
+                || value.chars().anyMatch(c -> Character.isWhitespace(c) || c == '(' || c == ')'))
+            return false;
+        if (t.isLeaf()) {
+            sb.append(value);
+            return true;
+        }
+        sb.append('(').append(value);
+        for (Tree child : t.children()) {
+            sb.append(' ');
+            if (!bracket(child, sb))
+                return false;
+        }
+        sb.append(')');
+        return true;
+    }
+}
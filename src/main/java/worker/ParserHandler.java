@@ -1,26 +1,55 @@
 package worker;
 
+import edu.stanford.nlp.parser.common.ParserQuery;
 import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
 import edu.stanford.nlp.process.DocumentPreprocessor;
 import edu.stanford.nlp.trees.*;
 import edu.stanford.nlp.ling.HasWord;
 import edu.stanford.nlp.ling.TaggedWord;
+import common.CorpusStats;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ParserHandler {
 
+    private static final String MODEL_PATH = "edu/stanford/nlp/models/lexparser/englishPCFG.ser.gz";
+
     private static LexicalizedParser parser;
 
+    // Sentences parsed in parallel; defaults to one thread per core
+    private static final int PARSER_THREADS = Integer.parseInt(System.getenv().getOrDefault(
+            "PARSER_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+    // Max sentences in flight per document, bounds the heap used by queued results
+    private static final int SENTENCE_WINDOW = PARSER_THREADS * 4;
+
+    // Read-ahead between the input stream and the sentence splitter
+    private static final int READ_BUFFER_CHARS = 64 * 1024;
+
+    // One pool per JVM, so concurrent documents share the cores instead of oversubscribing them
+    private static final ExecutorService parsePool = Executors.newFixedThreadPool(PARSER_THREADS, r -> {
+        Thread t = new Thread(r, "parser");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // The model is shared, but a ParserQuery holds per-parse scratch state: keep one per thread
+    private static final ThreadLocal<ParserQuery> queries = ThreadLocal.withInitial(() -> parser.parserQuery());
+
     static {
-        String modelPath = "edu/stanford/nlp/models/lexparser/englishPCFG.ser.gz";
         try {
             System.out.println("Loading Stanford Parser model...");
-            parser = LexicalizedParser.loadModel(modelPath);
-            System.out.println("Model loaded successfully.");
+            parser = LexicalizedParser.loadModel(MODEL_PATH);
+            System.out.println("Model loaded successfully. Parser threads: " + PARSER_THREADS);
         } catch (Exception e) {
             System.err.println("Error loading Stanford Parser model: " + e.getMessage());
             e.printStackTrace();
@@ -28,54 +57,182 @@ public class ParserHandler {
     }
 
     public static void run(String operation, Path inputFile, Path outputFile) throws IOException {
+        try (InputStream in = Files.newInputStream(inputFile)) {
+            run(List.of(operation), in, List.of(outputFile), null);
+        }
+    }
+
+    public static void run(String operation, InputStream input, Path outputFile) throws IOException {
+        run(List.of(operation), input, List.of(outputFile), null);
+    }
+
+    // Parses straight from a stream (e.g. an HTTP body): splitting starts with the first bytes read.
+    // Each sentence is parsed once and every operation's output is taken from that same tree;
+    // outputFiles.get(i) receives the result of operations.get(i). When stats is not null,
+    // tag/relation/length/word counts of every parsed sentence are recorded into it.
+    public static void run(List<String> operations, InputStream input, List<Path> outputFiles, CorpusStats stats)
+            throws IOException {
+        run(operations, input, outputFiles, stats, null);
+    }
+
+    // documentId (URL and byte range) lets the parse cache share this document's trees through S3
+    public static void run(List<String> operations, InputStream input, List<Path> outputFiles, CorpusStats stats,
+            String documentId) throws IOException {
         if (parser == null) {
             throw new IOException("Parser model failed to load. Check logs.");
         }
 
-        StringBuilder resultBuilder = new StringBuilder();
+        Reader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), READ_BUFFER_CHARS);
+        DocumentPreprocessor tokenizer = new DocumentPreprocessor(reader);
+
+        List<BufferedWriter> writers = new ArrayList<>();
+        // Each result is written in sentence order as soon as it is drained: heap use stays flat
+        // however long the book is
+        // null when the cache is off: then sentences are parsed without computing a key at all
+        try (ParseCache.Document cache = ParseCache.enabled() ? ParseCache.open(MODEL_PATH, documentId) : null;
+                OrderedWindow<String[]> window = new OrderedWindow<>(parsePool, SENTENCE_WINDOW,
+                        results -> write(writers, results))) {
+            for (Path outputFile : outputFiles) {
+                writers.add(new BufferedWriter(new FileWriter(outputFile.toFile())));
+            }
 
-        DocumentPreprocessor tokenizer = new DocumentPreprocessor(inputFile.toString());
+            for (List<HasWord> sentence : tokenizer) {
 
-        for (List<HasWord> sentence : tokenizer) {
+                if (sentence.size() > 80)
+                    continue;
+
+                window.submit(() -> analyze(operations, sentence, stats, cache));
+            }
+            window.drain();
+        } finally {
+            for (BufferedWriter w : writers) {
+                w.close();
+            }
+        }
+    }
 
-            if (sentence.size() > 80)
-                continue;
+    private static void write(List<BufferedWriter> writers, String[] results) throws IOException {
+        for (int i = 0; i < results.length; i++) {
+            writers.get(i).write(results[i]);
+        }
+    }
 
+    private static String[] analyze(List<String> operations, List<HasWord> sentence, CorpusStats stats,
+            ParseCache.Document cache) {
+        String[] results = new String[operations.size()];
+        Tree parseTree;
+        try {
+            parseTree = parse(sentence, cache);
+        } catch (Exception e) {
+            Arrays.fill(results, "Error parsing sentence: " + e.getMessage() + "\n");
+            return results;
+        }
+        // Dependencies are computed once and shared by the stats and the DEPENDENCY output, and
+        // only when an operation asks for them: POS-only tasks record no relations
+        Collection<TypedDependency> deps = null;
+        if (stats != null) {
             try {
-                Tree parseTree = parser.apply(sentence);
-
-                switch (operation.toUpperCase()) {
-                    case "POS":
-                        ArrayList<TaggedWord> taggedWords = parseTree.taggedYield();
-                        for (TaggedWord tw : taggedWords) {
-                            resultBuilder.append(tw.word()).append("/").append(tw.tag()).append(" ");
-                        }
-                        resultBuilder.append("\n");
-                        break;
-
-                    case "CONSTITUENCY":
-                        StringWriter sw = new StringWriter();
-                        parseTree.pennPrint(new PrintWriter(sw));
-                        resultBuilder.append(sw.toString()).append("\n");
-                        break;
-
-                    case "DEPENDENCY":
-                        TreebankLanguagePack tlp = new PennTreebankLanguagePack();
-                        GrammaticalStructureFactory gsf = tlp.grammaticalStructureFactory();
-                        GrammaticalStructure gs = gsf.newGrammaticalStructure(parseTree);
-                        resultBuilder.append(gs.typedDependenciesCollapsed().toString()).append("\n");
-                        break;
-
-                    default:
-                        resultBuilder.append("Unknown analysis type: ").append(operation).append("\n");
-                }
+                if (wantsDependencies(operations))
+                    deps = dependencies(parseTree);
+                record(stats, parseTree, deps);
             } catch (Exception e) {
-                resultBuilder.append("Error parsing sentence: ").append(e.getMessage()).append("\n");
+                System.err.println("[Parser] stats skipped for a sentence: " + e.getMessage());
+            }
+        }
+        for (int i = 0; i < results.length; i++) {
+            results[i] = format(operations.get(i), parseTree, deps);
+        }
+        return results;
+    }
+
+    // deps may be null, then no relations are recorded
+    private static void record(CorpusStats stats, Tree parseTree, Collection<TypedDependency> deps) {
+        ArrayList<TaggedWord> taggedWords = parseTree.taggedYield();
+        List<String> tags = new ArrayList<>(taggedWords.size());
+        List<String> words = new ArrayList<>(taggedWords.size());
+        for (TaggedWord tw : taggedWords) {
+            tags.add(tw.tag());
+            words.add(tw.word());
+        }
+        List<String> relations = null;
+        if (deps != null) {
+            relations = new ArrayList<>(deps.size());
+            for (TypedDependency td : deps) {
+                relations.add(td.reln().getShortName());
             }
         }
+        stats.addSentence(tags, words, relations);
+    }
+
+    private static boolean wantsDependencies(List<String> operations) {
+        for (String operation : operations) {
+            if (operation.equalsIgnoreCase("DEPENDENCY"))
+                return true;
+        }
+        return false;
+    }
+
+    private static Collection<TypedDependency> dependencies(Tree parseTree) {
+        TreebankLanguagePack tlp = new PennTreebankLanguagePack();
+        GrammaticalStructureFactory gsf = tlp.grammaticalStructureFactory();
+        GrammaticalStructure gs = gsf.newGrammaticalStructure(parseTree);
+        return gs.typedDependenciesCollapsed();
+    }
+
+    // deps may be null, then DEPENDENCY computes them itself
+    private static String format(String operation, Tree parseTree, Collection<TypedDependency> deps) {
+        StringBuilder resultBuilder = new StringBuilder();
+        try {
+            switch (operation.toUpperCase()) {
+                case "POS":
+                    ArrayList<TaggedWord> taggedWords = parseTree.taggedYield();
+                    for (TaggedWord tw : taggedWords) {
+                        resultBuilder.append(tw.word()).append("/").append(tw.tag()).append(" ");
+                    }
+                    resultBuilder.append("\n");
+                    break;
+
+                case "CONSTITUENCY":
+                    StringWriter sw = new StringWriter();
+                    parseTree.pennPrint(new PrintWriter(sw));
+                    resultBuilder.append(sw.toString()).append("\n");
+                    break;
+
+                case "DEPENDENCY":
+                    if (deps == null)
+                        deps = dependencies(parseTree);
+                    resultBuilder.append(deps.toString()).append("\n");
+                    break;
+
+                default:
+                    resultBuilder.append("Unknown analysis type: ").append(operation).append("\n");
+            }
+        } catch (Exception e) {
+            resultBuilder.append("Error parsing sentence: ").append(e.getMessage()).append("\n");
+        }
+        return resultBuilder.toString();
+    }
+
+    private static Tree parse(List<HasWord> sentence, ParseCache.Document cache) {
+        byte[] key = null;
+        if (cache != null) {
+            key = ParseCache.key(MODEL_PATH, sentence);
+            Tree tree = cache.get(key);
+            if (tree != null)
+                return tree;
+        }
+
+        Tree tree;
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile.toFile()))) {
-            writer.write(resultBuilder.toString());
+        ParserQuery query = queries.get();
+        if (query.parse(sentence)) {
+            tree = query.getBestParse();
+        } else {
+            // Same fallback tree parser.apply() builds when no parse is found
+            tree = parser.apply(sentence);
         }
+        if (cache != null)
+            cache.put(key, tree);
+        return tree;
     }
-}
\ No newline at end of file
+}
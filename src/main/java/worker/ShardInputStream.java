@@ -0,0 +1,93 @@
+package worker;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Trims a byte range of a document to whole paragraphs, so that consecutive shards
+ * split the text at the same blank lines and never share or drop a sentence.
+ *
+ * A boundary is the position right after a blank line (only spaces, tabs or \r before
+ * its \n). Shard [start, end) emits from the first boundary at or after start (or from 0)
+ * up to the first boundary at or after end (or EOF). The underlying stream may begin
+ * before start (see LOOKBACK) so the line state at start can be reconstructed.
+ */
+class ShardInputStream extends InputStream {
+
+    // Bytes to read before start; a blank line longer than this could be misjudged
+    static final int LOOKBACK = 256;
+
+    private final InputStream in;
+    private final long start;
+    private final long end;
+    private long pos; // absolute offset of the next byte read from `in`
+    private boolean emitting;
+    private boolean done;
+    private boolean lineBlank; // current line holds only whitespace so far
+    private final byte[] buf = new byte[8192];
+    private int bufPos = 0;
+    private int bufLen = 0;
+
+    // `origin` is the absolute offset of the first byte of `in`, at most `start`
+    ShardInputStream(InputStream in, long origin, long start, long end) {
+        this.in = in;
+        this.start = start;
+        this.end = end;
+        this.pos = origin;
+        this.emitting = start == 0;
+        this.lineBlank = origin == 0; // a partial first line is never treated as blank
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        int n = 0;
+        while (n < len && !done) {
+            if (bufPos == bufLen) {
+                if (n > 0)
+                    break; // hand out what we have before blocking again
+                bufLen = in.read(buf);
+                bufPos = 0;
+                if (bufLen < 0) {
+                    done = true;
+                    break;
+                }
+            }
+            byte c = buf[bufPos++];
+            boolean boundaryAfter = false;
+            if (c == '\n') {
+                boundaryAfter = lineBlank;
+                lineBlank = true;
+            } else if (c != ' ' && c != '\t' && c != '\r') {
+                lineBlank = false;
+            }
+            pos++;
+
+            if (!emitting) {
+                if (boundaryAfter && pos >= start) {
+                    emitting = true;
+                    // no paragraph break between start and end: the previous shard covers it all
+                    done = pos >= end;
+                }
+                continue;
+            }
+            b[off + n++] = c;
+            if (boundaryAfter && pos >= end)
+                done = true;
+        }
+        return n == 0 && done ? -1 : n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,108 +1,416 @@
 package worker;
 
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
-import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
-import software.amazon.awssdk.services.sqs.model.Message;
-import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
-import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import common.BlobStore;
+import common.Envelope;
+import common.MessageQueue;
+import common.MessageQueue.Message;
+import common.ResultMessage;
+import common.TaskMessage;
+import common.Transports;
 
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class WorkerApplication {
+    // How often the cache hit counters are logged; 0 logs them only when a worker stops
+    private static final long CACHE_STATS_SECONDS = Long.parseLong(
+            System.getenv().getOrDefault("CACHE_STATS_SECONDS", "60"));
+    private static final AtomicBoolean cacheStatsStarted = new AtomicBoolean();
+    // An envelope stays hidden this long after its receive and is extended every third of it
+    // while its tasks run, so a stalled worker's tasks come back soon instead of after an hour
+    private static final int VISIBILITY_SECONDS = Integer.parseInt(
+            System.getenv().getOrDefault("WORKER_VISIBILITY_SECONDS", "600"));
+
+    private final MessageQueue queues; // WMQ reports and MWQ deletes, batched on SQS
+    private final BlobStore blobs;
+    private final String mwq;
+    private final String wmq;
+    private final String bucket;
+    private final int slots;
+    private final int prefetch;
+    private final int uploaders;
+    private final boolean streamInput;
+
+    // ===== pipeline stages =====
+    // Tasks whose document is already on disk, waiting for a parse slot
+    private final BlockingQueue<WorkerTask> parseQueue;
+    // Released once a task is uploaded, lets the receiver pull the next envelope
+    private final TaskPermits taskPermits;
+    private final ExecutorService downloadPool;
+    // Envelopes received and not yet deleted, kept hidden by the heartbeat
+    private final Set<WorkerTask.Batch> openBatches = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService heartbeat;
+    private final List<Thread> threads = new ArrayList<>(); // stage threads and the receiver
+    private volatile boolean running = true;
+
     public static void main(String[] args) throws Exception {
         if (args.length < 3) {
-            System.err.println("Usage: WorkerApplication <MWQ_URL> <WMQ_URL> <S3_BUCKET>");
+            System.err.println("Usage: WorkerApplication <MWQ_URL> <WMQ_URL> <S3_BUCKET> [SLOTS]");
             return;
         }
 
-        String MWQ = args[0];
-        String WMQ = args[1];
-        String BUCKET = args[2];
+        // Concurrent parse slots per JVM; defaults to one per core
+        int slots = args.length > 3 ? Integer.parseInt(args[3])
+                : Integer.parseInt(System.getenv().getOrDefault(
+                        "WORKER_SLOTS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        new WorkerApplication(args[0], args[1], args[2], slots).run();
+    }
 
-        SqsClient sqs = SqsClient.builder().region(Region.US_EAST_1).build();
-        S3Client s3 = S3Client.builder().region(Region.US_EAST_1).build();
+    // One worker; several can share a JVM (see InProcessComputeProvider)
+    public WorkerApplication(String mwq, String wmq, String bucket, int slots) {
+        this.mwq = mwq;
+        this.wmq = wmq;
+        this.bucket = bucket;
+        this.slots = slots;
+        // Documents downloaded ahead of the parser, and finished tasks whose uploads and report
+        // may be in flight at once (async, so these hold no thread)
+        this.prefetch = Integer.parseInt(System.getenv().getOrDefault("WORKER_PREFETCH", "2"));
+        this.uploaders = Integer.parseInt(System.getenv().getOrDefault("WORKER_UPLOADERS", "8"));
+        // Parse straight from the HTTP body instead of staging the document on disk first.
+        // Streaming skips the prefetch download, so it is only the default when there is
+        // nothing to prefetch (WORKER_PREFETCH=1); set it explicitly to override.
+        this.streamInput = Boolean.parseBoolean(
+                System.getenv().getOrDefault("WORKER_STREAM_INPUT", String.valueOf(prefetch <= 1)));
+        this.queues = Transports.queues();
+        this.blobs = Transports.blobs();
 
-        System.out.println("Worker up. MWQ=" + MWQ + " WMQ=" + WMQ + " BUCKET=" + BUCKET);
+        // Bounded hand-offs: a full queue blocks the stage before it, so a fast network
+        // cannot pile up documents on the temp disk faster than the parser consumes them
+        this.parseQueue = new ArrayBlockingQueue<>(prefetch);
+        this.downloadPool = Executors.newFixedThreadPool(prefetch);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "visibility");
+            t.setDaemon(true);
+            return t;
+        });
 
-        while (true) {
-            List<Message> msgs = sqs.receiveMessage(
-                    ReceiveMessageRequest.builder()
-                            .queueUrl(MWQ)
-                            .maxNumberOfMessages(1)
-                            .waitTimeSeconds(20) // long polling
-                            .visibilityTimeout(3600)
-                            .build())
-                    .messages();
+        // Every task holds a permit from receive until its results are uploaded, which caps
+        // the tasks that are downloading, queued, parsing or uploading at any moment
+        this.taskPermits = new TaskPermits(prefetch * 2 + slots + uploaders);
+    }
 
-            if (msgs.isEmpty())
-                continue;
+    // Receives and runs tasks on the calling thread until stop()
+    public void run() {
+        // Share parsed sentences with the rest of the fleet through the job bucket
+        if (Boolean.parseBoolean(System.getenv().getOrDefault("PARSE_CACHE_S3", "false"))) {
+            ParseCache.attachS3(blobs, bucket);
+        }
+
+        System.out.println("Worker up. MWQ=" + mwq + " WMQ=" + wmq + " BUCKET=" + bucket
+                + " SLOTS=" + slots + " PREFETCH=" + prefetch + " UPLOADERS=" + uploaders
+                + " STREAM_INPUT=" + streamInput);
 
-            Message m = msgs.get(0);
-            String body = m.body(); // {"jobId","url","analysis"}
-            String jobId = extract(body, "jobId");
-            String url = extract(body, "url");
-            String anal = extract(body, "analysis");
+        synchronized (threads) {
+            threads.add(Thread.currentThread());
+        }
+        startStage("parse", slots, this::parseStage);
+        startCacheStats();
+        long beat = Math.max(1, VISIBILITY_SECONDS / 3);
+        heartbeat.scheduleAtFixedRate(this::extendVisibility, beat, beat, TimeUnit.SECONDS);
 
+        int tasksPerMessage = 1; // envelope size seen last
+        while (running) {
+            // Wait for room in the pipeline, then ask for as many envelopes as fit, counting them
+            // at the size of the last ones (SQS caps a batch at 10). An envelope bigger than
+            // that leaves the permits in debt until enough of its tasks are through.
             try {
-                // 1) download URL -> tmp file
-                Path input = Files.createTempFile("in-", ".txt");
-                HttpDownloader.download(url, input);
-
-                // 2) analyze (stub for now) -> tmp out
-                Path out = Files.createTempFile("out-", ".txt");
-                ParserHandler.run(anal, input, out);
-
-                // 3) upload to S3
-                String key = "results/" + jobId + "/" + System.currentTimeMillis() + ".txt";
-                s3.putObject(
-                        PutObjectRequest.builder().bucket(BUCKET).key(key).build(),
-                        RequestBody.fromFile(out));
-                String resultS3 = "s3://" + BUCKET + "/" + key;
-
-                // 4) report success to WMQ
-                String doneJson = String.format(
-                        "{\"jobId\":\"%s\",\"url\":\"%s\",\"analysis\":\"%s\",\"resultS3\":\"%s\",\"ok\":true}",
-                        escape(jobId), escape(url), escape(anal), escape(resultS3));
-                sqs.sendMessage(SendMessageRequest.builder().queueUrl(WMQ).messageBody(doneJson).build());
-
-                // 5) delete task from MWQ
-                sqs.deleteMessage(DeleteMessageRequest.builder()
-                        .queueUrl(MWQ).receiptHandle(m.receiptHandle()).build());
+                taskPermits.acquire();
+            } catch (InterruptedException e) {
+                break; // stopped
+            }
+            int granted = 1 + taskPermits.drainPermits();
+            int wanted = Math.max(1, Math.min(10, granted / tasksPerMessage));
 
+            List<Message> msgs;
+            try {
+                msgs = queues.receive(mwq, wanted, 20, VISIBILITY_SECONDS); // long polling
             } catch (Exception e) {
+                System.err.println("[Worker] receive failed: " + e.getMessage());
+                msgs = List.of();
+            }
+
+            List<WorkerTask> tasks = new ArrayList<>();
+            for (Message m : msgs) {
+                List<TaskMessage> items;
+                try {
+                    items = Envelope.unpack(m.body(), TaskMessage.CODEC);
+                } catch (RuntimeException e) {
+                    items = List.of(); // a redelivery would not read any better
+                    System.err.println("[Worker] dropping unreadable message " + m.messageId() + ": " + e.getMessage());
+                }
+                if (items.isEmpty()) {
+                    queues.delete(mwq, m.receiptHandle());
+                    continue;
+                }
+                WorkerTask.Batch batch = new WorkerTask.Batch(m.receiptHandle(), items.size());
+                openBatches.add(batch);
+                for (int i = 0; i < items.size(); i++) {
+                    tasks.add(new WorkerTask(batch, m.messageId() + "-" + i, items.get(i)));
+                }
+            }
+            if (!msgs.isEmpty())
+                tasksPerMessage = Math.max(1, tasks.size() / msgs.size());
+            if (tasks.size() <= granted)
+                taskPermits.release(granted - tasks.size());
+            else
+                taskPermits.charge(tasks.size() - granted);
+            try {
+                for (WorkerTask task : tasks) {
+                    if (task.failed())
+                        finish(task); // malformed: reported as failed right away
+                    else
+                        downloadPool.submit(() -> downloadStage(task));
+                }
+            } catch (RejectedExecutionException e) {
+                break; // stopped while handing out the batch
+            }
+        }
+        logCacheStats();
+        System.out.println("Worker stopped. MWQ=" + mwq);
+    }
+
+    // Stops receiving; tasks still in the pipeline are dropped and reappear on MWQ after
+    // their visibility timeout, exactly as if the instance had been terminated
+    public void stop() {
+        running = false;
+        downloadPool.shutdownNow();
+        heartbeat.shutdownNow();
+        synchronized (threads) {
+            threads.forEach(Thread::interrupt);
+        }
+    }
+
+    // Workers sharing a JVM share the caches too, so one timer reports for all of them
+    private static void startCacheStats() {
+        if (CACHE_STATS_SECONDS <= 0 || !cacheStatsStarted.compareAndSet(false, true))
+            return;
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cache-stats");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(WorkerApplication::logCacheStats, CACHE_STATS_SECONDS, CACHE_STATS_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    private static void logCacheStats() {
+        System.out.println("[Worker] document cache hits=" + DocumentCache.hits() + " misses=" + DocumentCache.misses()
+                + ", parse cache hits=" + ParseCache.hits() + " misses=" + ParseCache.misses());
+    }
+
+    private void startStage(String name, int count, Runnable loop) {
+        for (int i = 0; i < count; i++) {
+            Thread t = new Thread(loop, name + "-" + i);
+            t.setDaemon(true);
+            synchronized (threads) {
+                threads.add(t);
+            }
+            t.start();
+        }
+    }
+
+    // ==== STAGES ====
+
+    // 1) download URL -> tmp file, then wait for a free spot in the parse queue.
+    // In stream mode the parse slot opens the URL itself: an idle prefetched
+    // connection would likely be dropped by the server while it waits in the queue.
+    // WORKER_PREFETCH therefore only downloads ahead when stream mode is off.
+    private void downloadStage(WorkerTask task) {
+        if (streamInput) {
+            handOff(parseQueue, task);
+            return;
+        }
+        try {
+            task.input = Files.createTempFile("in-", ".txt");
+            try (InputStream in = openDocument(task)) {
+                Files.copy(in, task.input, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (Exception e) {
+            task.fail(e);
+        }
+        if (task.failed())
+            finish(task);
+        else
+            handOff(parseQueue, task);
+    }
+
+    // 2) analyze -> tmp out
+    private void parseStage() {
+        while (running) {
+            WorkerTask task = take(parseQueue);
+            if (task == null)
+                return; // stopped
+            try {
+                for (int i = 0; i < task.analyses.size(); i++) {
+                    task.outputs.add(Files.createTempFile("out-", ".txt"));
+                }
+                try (InputStream in = task.input != null
+                        ? Files.newInputStream(task.input)
+                        : openDocument(task)) {
+                    String documentId = task.sharded()
+                            ? task.url + "#" + task.rangeStart + "-" + task.rangeEnd : task.url;
+                    ParserHandler.run(task.analyses, in, task.outputs, task.stats, documentId);
+                }
+            } catch (Exception e) {
+                task.fail(e);
+            } finally {
+                deleteQuietly(task.input);
+            }
+            finish(task);
+        }
+    }
+
+    // 3) upload to S3 as a chain of futures, so the parse slot moves on at once and no thread
+    // waits on the network, then report the task's results right away
+    private void finish(WorkerTask task) {
+        CompletableFuture<Void> uploaded = task.failed() ? CompletableFuture.completedFuture(null)
+                : upload(task).exceptionally(e -> {
+                    task.fail(e instanceof CompletionException && e.getCause() instanceof Exception
+                            ? (Exception) e.getCause() : new Exception(e));
+                    return null;
+                });
+        uploaded.whenComplete((v, e) -> {
+            deleteQuietly(task.input);
+            task.outputs.forEach(WorkerApplication::deleteQuietly);
+            taskPermits.release();
+            report(task);
+        });
+    }
+
+    private CompletableFuture<Void> upload(WorkerTask task) {
+        List<CompletableFuture<Void>> puts = new ArrayList<>();
+        for (int i = 0; i < task.analyses.size(); i++) {
+            // task id keeps keys unique across concurrent slots
+            String key = "results/" + task.jobId + "/" + System.currentTimeMillis() + "-" + task.taskId
+                    + "-" + i + (task.sharded() ? ".part" + task.part : "") + ".txt";
+            task.resultS3.add(BlobStore.url(bucket, key));
+            puts.add(blobs.putAsync(bucket, key, task.outputs.get(i)));
+        }
+        return CompletableFuture.allOf(puts.toArray(new CompletableFuture[0]));
+    }
+
+    // A task's results go back as one WMQ envelope as soon as it is done, so the client's
+    // progress does not wait for the envelope's slowest task. The MWQ message is deleted once
+    // every task of it was reported: if a send fails the message is no longer kept hidden,
+    // becomes visible again and its tasks are redone instead of being lost.
+    private void report(WorkerTask task) {
+        List<ResultMessage> results = results(task);
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        try {
+            for (Envelope<ResultMessage> envelope : Envelope.pack(results, ResultMessage.CODEC)) {
+                sends.add(queues.send(wmq, envelope.body));
+            }
+        } catch (IllegalArgumentException e) {
+            sends.add(CompletableFuture.failedFuture(e)); // a result too large for a message
+        }
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture[0])).whenComplete((v, e) -> {
+            if (e != null)
+                System.err.println("[Worker] failed to report " + results.size() + " results: " + e.getMessage());
+            WorkerTask.Batch batch = task.batch;
+            if (!batch.reported(e == null))
+                return;
+            openBatches.remove(batch);
+            if (batch.allAccepted())
+                queues.delete(mwq, batch.receiptHandle).whenComplete((d, de) -> {
+                    if (de != null)
+                        System.err.println("[Worker] failed to delete a task envelope: " + de.getMessage());
+                });
+        });
+    }
+
+    private void extendVisibility() {
+        for (WorkerTask.Batch batch : openBatches) {
+            queues.extendVisibility(mwq, batch.receiptHandle, VISIBILITY_SECONDS).whenComplete((v, e) -> {
+                if (e != null)
+                    System.err.println("[Worker] failed to extend a task envelope: " + e.getMessage());
+            });
+        }
+    }
+
+    // One result per analysis, so the manager accounts for them exactly as separate tasks
+    private static List<ResultMessage> results(WorkerTask task) {
+        List<ResultMessage> results = new ArrayList<>(task.analyses.size());
+        for (int i = 0; i < task.analyses.size(); i++) {
+            if (!task.failed()) {
+                // The document's stats ride on its first result only, so the manager counts them once
+                results.add(new ResultMessage(task.jobId, task.taskIndexes[i], task.url, task.analyses.get(i), true,
+                        task.resultS3.get(i), null, i == 0 ? encodeStats(task) : null, task.part, task.parts));
+            } else {
                 // report failure and delete task (to avoid infinite retries for now)
-                String errorMsg = e.getMessage() == null ? "" : e.getMessage().replace("\"", "'");
-                String failJson = String.format(
-                        "{\"jobId\":\"%s\",\"url\":\"%s\",\"analysis\":\"%s\",\"ok\":false,\"error\":\"%s\"}",
-                        escape(jobId), escape(url), escape(anal), escape(errorMsg));
-                sqs.sendMessage(SendMessageRequest.builder().queueUrl(WMQ).messageBody(failJson).build());
-
-                sqs.deleteMessage(DeleteMessageRequest.builder()
-                        .queueUrl(MWQ).receiptHandle(m.receiptHandle()).build());
+                results.add(new ResultMessage(task.jobId, task.taskIndexes[i], task.url, task.analyses.get(i), false,
+                        null, task.error, null, task.part, task.parts));
             }
         }
+        return results;
     }
 
-    private static String extract(String json, String key) {
-        String marker = "\"" + key + "\":\"";
-        int i = json.indexOf(marker);
-        if (i < 0)
-            return "";
-        int j = json.indexOf('"', i + marker.length());
-        if (j < 0)
-            return "";
-        return json.substring(i + marker.length(), j);
+    private static InputStream openDocument(WorkerTask task) throws Exception {
+        return task.sharded()
+                ? HttpDownloader.openRange(task.url, task.rangeStart, task.rangeEnd)
+                : HttpDownloader.open(task.url);
     }
 
-    private static String escape(String s) {
-        if (s == null)
-            return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    private static String encodeStats(WorkerTask task) {
+        try {
+            return task.stats.encode();
+        } catch (Exception e) {
+            System.err.println("[Worker] stats not attached for " + task.url + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void handOff(BlockingQueue<WorkerTask> queue, WorkerTask task) {
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while handing off " + task.url, e);
+        }
+    }
+
+    // null once the worker is stopped
+    private static WorkerTask take(BlockingQueue<WorkerTask> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static void deleteQuietly(Path p) {
+        if (p == null)
+            return;
+        try {
+            Files.deleteIfExists(p);
+        } catch (Exception ignored) {
+        }
+    }
+
+    // A Semaphore that can go into debt: an envelope may bring more tasks than were granted
+    private static final class TaskPermits extends Semaphore {
+        TaskPermits(int permits) {
+            super(permits);
+        }
+
+        void charge(int permits) {
+            reducePermits(permits);
+        }
     }
 }
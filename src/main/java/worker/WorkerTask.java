@@ -0,0 +1,90 @@
+package worker;
+
+import common.CorpusStats;
+import common.TaskMessage;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// One task of an MWQ envelope as it moves through the download -> parse -> upload stages.
+// A task names one URL and every analysis wanted for it; the document is parsed once.
+class WorkerTask {
+    final Batch batch; // the envelope it came in
+    final String taskId; // unique per task: MWQ message id and position in the envelope
+    final String jobId;
+    final String url;
+    final List<String> analyses;
+    final int[] taskIndexes; // manager's task index per analysis, -1 when the task did not carry one
+    // Byte range of a sharded document and its position among the parts; whole document: -1/-1, 0 of 1
+    final long rangeStart;
+    final long rangeEnd;
+    final int part;
+    final int parts;
+
+    Path input; // downloaded document, null until the download stage ran or in stream mode
+    final List<Path> outputs = new ArrayList<>(); // parser output per analysis, filled by the parse stage
+    final List<String> resultS3 = new ArrayList<>(); // per analysis, set by the upload stage
+    String error; // first failure along the pipeline, null if ok
+    final CorpusStats stats = new CorpusStats(); // filled by the parser, sent with the first result
+
+    WorkerTask(Batch batch, String taskId, TaskMessage message) {
+        this.batch = batch;
+        this.taskId = taskId;
+        this.jobId = message.jobId;
+        this.url = message.url;
+        this.analyses = message.analyses;
+        this.taskIndexes = message.taskIndexes;
+        this.rangeStart = message.rangeStart;
+        this.rangeEnd = message.rangeEnd;
+        this.part = message.part;
+        this.parts = message.parts;
+        // Checked up front, so a bad task is reported as failed instead of stopping a stage
+        if (jobId == null || url == null)
+            error = "malformed task: no job id or url";
+        else if (rangeStart >= 0 && rangeEnd <= rangeStart)
+            error = "malformed task: byte range " + rangeStart + "-" + rangeEnd;
+        else if (parts < 1 || part < 0 || part >= parts)
+            error = "malformed task: part " + part + " of " + parts;
+    }
+
+    boolean sharded() {
+        return rangeStart >= 0;
+    }
+
+    boolean failed() {
+        return error != null;
+    }
+
+    void fail(Exception e) {
+        if (error == null) {
+            String message = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            // the error travels in a result message, keep it well inside one
+            error = message.length() <= 1000 ? message : message.substring(0, 1000) + "...";
+        }
+    }
+
+    // The tasks of one MWQ message. Each task reports its own results as soon as it is done; the
+    // message is deleted once every task's report was accepted, and kept hidden until then.
+    static final class Batch {
+        final String receiptHandle;
+        private int pending;
+        private boolean reportFailed;
+
+        Batch(String receiptHandle, int tasks) {
+            this.receiptHandle = receiptHandle;
+            this.pending = tasks;
+        }
+
+        // true for the envelope's last report
+        synchronized boolean reported(boolean accepted) {
+            if (!accepted)
+                reportFailed = true;
+            return --pending == 0;
+        }
+
+        synchronized boolean allAccepted() {
+            return !reportFailed;
+        }
+    }
+}
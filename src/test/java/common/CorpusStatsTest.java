@@ -0,0 +1,110 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CorpusStatsTest {
+
+    @Test
+    void countsSentencesTagsAndRelations() {
+        CorpusStats stats = new CorpusStats();
+        stats.addSentence(List.of("DT", "NN", "VBZ"), List.of("The", "dog", "barks"), List.of("det", "nsubj"));
+        stats.addSentence(List.of("NN"), List.of("Dogs"), null);
+
+        assertEquals(2, stats.sentences());
+        assertEquals(4, stats.tokens());
+        assertEquals(2, stats.lengthHistogram()[0]);
+        assertEquals(Map.entry("NN", 2L), stats.topTags(1).get(0));
+        assertEquals(2, stats.topRelations(10).size());
+    }
+
+    @Test
+    void topWordsFindTheHeavyHittersAndNeverUnderCount() {
+        CorpusStats stats = new CorpusStats();
+        // a few frequent words among many rare ones, more rare words than the candidate list holds
+        for (int round = 0; round < 20; round++) {
+            List<String> words = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                words.add("rare" + round + "x" + i);
+            }
+            for (int i = 0; i < 10; i++) {
+                words.add("alpha");
+                words.add("beta");
+            }
+            words.add("gamma");
+            words.add("42"); // numbers and punctuation are not counted
+            words.add(",");
+            stats.addSentence(List.of(), words, null);
+        }
+
+        List<Map.Entry<String, Long>> top = stats.topWords(3);
+        assertTrue(top.get(0).getValue() >= 200);
+        assertTrue(top.get(1).getValue() >= 200);
+        assertTrue(List.of(top.get(0).getKey(), top.get(1).getKey()).containsAll(List.of("alpha", "beta")));
+        assertEquals("gamma", top.get(2).getKey());
+        assertTrue(top.get(2).getValue() >= 20);
+        for (Map.Entry<String, Long> e : stats.topWords(1000)) {
+            assertTrue(Character.isLetter(e.getKey().charAt(0)), e.getKey());
+        }
+    }
+
+    @Test
+    void wordsAreCountedCaseInsensitively() {
+        CorpusStats stats = new CorpusStats();
+        stats.addWord("Word");
+        stats.addWord("WORD");
+        stats.addWord("word");
+
+        assertEquals(Map.entry("word", 3L), stats.topWords(1).get(0));
+    }
+
+    @Test
+    void mergeAddsEverything() {
+        CorpusStats a = new CorpusStats();
+        CorpusStats b = new CorpusStats();
+        for (int i = 0; i < 5; i++) {
+            a.addSentence(List.of("NN"), List.of("apple"), List.of("root"));
+            b.addSentence(List.of("NN", "VB"), List.of("apple", "eats"), List.of("root", "dobj"));
+        }
+
+        a.merge(b);
+
+        assertEquals(10, a.sentences());
+        assertEquals(15, a.tokens());
+        assertEquals(Map.entry("NN", 10L), a.topTags(1).get(0));
+        assertEquals(Map.entry("root", 10L), a.topRelations(1).get(0));
+        assertEquals("apple", a.topWords(1).get(0).getKey());
+        assertTrue(a.topWords(1).get(0).getValue() >= 10);
+        assertEquals(5, b.sentences()); // the other side is left alone
+    }
+
+    @Test
+    void encodeDecodeKeepsTheStats() throws Exception {
+        CorpusStats stats = new CorpusStats();
+        for (int i = 0; i < 30; i++) {
+            stats.addSentence(List.of("JJ", "NN"), List.of("big", "word" + (i % 3)), List.of("amod"));
+        }
+        stats.addSentence(100);
+
+        CorpusStats read = CorpusStats.decode(stats.encode());
+
+        assertEquals(stats.sentences(), read.sentences());
+        assertEquals(stats.tokens(), read.tokens());
+        assertArrayEquals(stats.lengthHistogram(), read.lengthHistogram());
+        assertEquals(stats.topTags(10), read.topTags(10));
+        assertEquals(stats.topRelations(10), read.topRelations(10));
+        assertEquals(stats.topWords(1), read.topWords(1));
+        assertEquals(stats.topWords(10).size(), read.topWords(10).size());
+
+        // a decoded copy keeps counting on the same sketch
+        read.addWord("big");
+        assertTrue(read.topWords(1).get(0).getValue() >= 31);
+    }
+}
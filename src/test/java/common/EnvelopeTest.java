@@ -0,0 +1,131 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EnvelopeTest {
+
+    @Test
+    void tasksSurviveARoundTrip() {
+        TaskMessage whole = new TaskMessage("job-1", "http://example.com/a.txt", List.of("POS", "CONSTITUENCY"),
+                new int[] {4, 5}, -1, -1, 0, 1);
+        TaskMessage part = new TaskMessage("job-1", "http://example.com/b.txt", List.of("DEPENDENCY"),
+                new int[] {6}, 1 << 20, 2 << 20, 1, 3);
+
+        List<Envelope<TaskMessage>> envelopes = Envelope.pack(List.of(whole, part), TaskMessage.CODEC);
+        assertEquals(1, envelopes.size());
+        List<TaskMessage> read = Envelope.unpack(envelopes.get(0).body, TaskMessage.CODEC);
+
+        assertEquals(2, read.size());
+        assertEquals("job-1", read.get(0).jobId);
+        assertEquals("http://example.com/a.txt", read.get(0).url);
+        assertEquals(List.of("POS", "CONSTITUENCY"), read.get(0).analyses);
+        assertArrayEquals(new int[] {4, 5}, read.get(0).taskIndexes);
+        assertEquals(-1, read.get(0).rangeStart);
+        assertEquals(1 << 20, read.get(1).rangeStart);
+        assertEquals(2 << 20, read.get(1).rangeEnd);
+        assertEquals(1, read.get(1).part);
+        assertEquals(3, read.get(1).parts);
+    }
+
+    @Test
+    void resultsKeepNullFieldsAndUnicode() {
+        ResultMessage ok = new ResultMessage("job-2", 7, "http://example.com/ü.txt", "POS", true,
+                "s3://bucket/results/x.txt", null, "c3RhdHM=", 0, 1);
+        ResultMessage failed = new ResultMessage("job-2", 8, "http://example.com/b.txt", "POS", false,
+                null, "404 Not Found", null, 0, 1);
+
+        List<ResultMessage> read = Envelope.unpack(
+                Envelope.pack(List.of(ok, failed), ResultMessage.CODEC).get(0).body, ResultMessage.CODEC);
+
+        assertEquals("http://example.com/ü.txt", read.get(0).url);
+        assertTrue(read.get(0).ok);
+        assertEquals("s3://bucket/results/x.txt", read.get(0).resultS3);
+        assertNull(read.get(0).error);
+        assertEquals("c3RhdHM=", read.get(0).stats);
+        assertEquals(8, read.get(1).task);
+        assertNull(read.get(1).resultS3);
+        assertEquals("404 Not Found", read.get(1).error);
+        assertNull(read.get(1).stats);
+    }
+
+    @Test
+    void packSplitsAtTheMessageLimitInOrder() {
+        Random random = new Random(42);
+        List<ResultMessage> results = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            // random text does not compress, so the split cannot lean on gzip
+            StringBuilder error = new StringBuilder();
+            for (int j = 0; j < 10_000; j++) {
+                error.append((char) ('!' + random.nextInt(90)));
+            }
+            results.add(new ResultMessage("job-3", i, "u" + i, "POS", false, null, error.toString(), null, 0, 1));
+        }
+
+        List<Envelope<ResultMessage>> envelopes = Envelope.pack(results, ResultMessage.CODEC);
+        assertTrue(envelopes.size() > 1);
+
+        List<ResultMessage> read = new ArrayList<>();
+        for (Envelope<ResultMessage> envelope : envelopes) {
+            assertTrue(envelope.body.length() <= Envelope.MAX_BODY_BYTES, "body of " + envelope.body.length());
+            read.addAll(Envelope.unpack(envelope.body, ResultMessage.CODEC));
+        }
+        assertEquals(results.size(), read.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, read.get(i).task);
+            assertEquals(results.get(i).error, read.get(i).error);
+        }
+    }
+
+    @Test
+    void unpackRejectsOtherBodies() {
+        String tasks = Envelope.pack(List.of(new TaskMessage("j", "u", List.of("POS"), new int[] {0}, -1, -1, 0, 1)),
+                TaskMessage.CODEC).get(0).body;
+
+        assertThrows(IllegalArgumentException.class, () -> Envelope.unpack(tasks, ResultMessage.CODEC));
+        assertThrows(IllegalArgumentException.class, () -> Envelope.unpack("{\"jobId\":\"j\"}", TaskMessage.CODEC));
+        assertThrows(IllegalArgumentException.class, () -> Envelope.unpack("E1!!not base64", TaskMessage.CODEC));
+        assertThrows(IllegalArgumentException.class,
+                () -> Envelope.unpack(tasks.substring(0, tasks.length() / 2), TaskMessage.CODEC));
+        assertThrows(IllegalArgumentException.class, () -> Envelope.unpack(null, TaskMessage.CODEC));
+    }
+
+    @Test
+    void unpackRejectsCountsAndLengthsPastTheBody() {
+        // kind 'T' and an item count of Integer.MAX_VALUE, but no items
+        String hugeCount = "E1" + Base64.getEncoder().encodeToString(new byte[] {0, 'T', 0x7f, -1, -1, -1});
+        assertThrows(IllegalArgumentException.class, () -> Envelope.unpack(hugeCount, TaskMessage.CODEC));
+
+        // one item whose job id claims 2 GB
+        String hugeString = "E1" + Base64.getEncoder().encodeToString(
+                new byte[] {0, 'T', 0, 0, 0, 1, 0x7f, -1, -1, -1, 'j'});
+        assertThrows(IllegalArgumentException.class, () -> Envelope.unpack(hugeString, TaskMessage.CODEC));
+    }
+
+    @Test
+    void anItemTooLargeForAMessageIsRejected() {
+        TaskMessage small = new TaskMessage("j", "u", List.of("POS"), new int[] {0}, -1, -1, 0, 1);
+        TaskMessage huge = new TaskMessage("j", "u".repeat(Envelope.MAX_BODY_BYTES), List.of("POS"), new int[] {1},
+                -1, -1, 0, 1);
+
+        assertTrue(Envelope.fits(small, TaskMessage.CODEC));
+        assertFalse(Envelope.fits(huge, TaskMessage.CODEC));
+        assertThrows(IllegalArgumentException.class, () -> Envelope.pack(List.of(small, huge), TaskMessage.CODEC));
+    }
+
+    @Test
+    void packOfNothingIsNoEnvelope() {
+        assertTrue(Envelope.pack(List.of(), TaskMessage.CODEC).isEmpty());
+    }
+}
@@ -0,0 +1,168 @@
+package manager;
+
+import common.InMemoryBlobStore;
+import common.InMemoryMessageQueue;
+import common.Transports;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ManagerJournalTest {
+
+    @TempDir
+    Path dir;
+
+    // the live state a manager would snapshot
+    private final List<String[]> state = new ArrayList<>();
+
+    private ManagerJournal open(Path at, String s3Bucket, String owner) {
+        ManagerJournal journal = new ManagerJournal(at, s3Bucket, owner);
+        journal.replay(state::add);
+        journal.open(sink -> state.forEach(sink), 3600);
+        return journal;
+    }
+
+    private static List<String[]> replay(Path at, String s3Bucket, String owner) {
+        List<String[]> records = new ArrayList<>();
+        int count = new ManagerJournal(at, s3Bucket, owner).replay(records::add);
+        assertEquals(records.size(), count);
+        return records;
+    }
+
+    @Test
+    void replayReturnsTheSnapshotThenTheSegment() {
+        state.add(new String[] {"J", "job-1", "s3://in/job-1.txt"});
+        ManagerJournal journal = open(dir, null, "lmq");
+        journal.append("R", "job-1", "3", "s3://out/3.txt");
+        // fields may hold the separators themselves
+        journal.append("D", "a\tb\nc\\d", "");
+        journal.close();
+
+        List<String[]> records = replay(dir, null, "lmq");
+        assertEquals(3, records.size());
+        assertArrayEquals(new String[] {"J", "job-1", "s3://in/job-1.txt"}, records.get(0));
+        assertArrayEquals(new String[] {"R", "job-1", "3", "s3://out/3.txt"}, records.get(1));
+        assertArrayEquals(new String[] {"D", "a\tb\nc\\d", ""}, records.get(2));
+    }
+
+    @Test
+    void checkpointCompactsTheSegmentIntoTheSnapshot() {
+        ManagerJournal journal = open(dir, null, "lmq");
+        journal.append("J", "job-1");
+        journal.append("R", "job-1", "0");
+        journal.append("R", "job-1", "1");
+        // the manager folds its results into one record per job
+        state.add(new String[] {"J", "job-1"});
+        state.add(new String[] {"P", "job-1", "0,1"});
+        journal.checkpoint();
+        journal.append("R", "job-1", "2");
+        journal.close();
+
+        List<String[]> records = replay(dir, null, "lmq");
+        assertEquals(3, records.size());
+        assertArrayEquals(new String[] {"P", "job-1", "0,1"}, records.get(1));
+        assertArrayEquals(new String[] {"R", "job-1", "2"}, records.get(2));
+    }
+
+    @Test
+    void aRecordTheHandlerRejectsIsSkipped() {
+        ManagerJournal journal = open(dir, null, "lmq");
+        journal.append("J", "job-1");
+        journal.append("?", "unknown");
+        journal.append("J", "job-2");
+        journal.close();
+
+        List<String> jobs = new ArrayList<>();
+        int count = new ManagerJournal(dir, null, "lmq").replay(r -> {
+            if (!r[0].equals("J"))
+                throw new IllegalArgumentException("unknown record " + r[0]);
+            jobs.add(r[1]);
+        });
+        assertEquals(2, count);
+        assertEquals(List.of("job-1", "job-2"), jobs);
+    }
+
+    @Test
+    void localJournalIsDurableAtOnce() {
+        ManagerJournal journal = open(dir, null, "lmq");
+        AtomicBoolean ran = new AtomicBoolean();
+        journal.whenDurable(() -> ran.set(true));
+        assertTrue(ran.get());
+        journal.close();
+    }
+
+    @Test
+    void s3SnapshotIsFoundByTheSameOwnerOnly() {
+        Transports.install(new InMemoryMessageQueue(0), new InMemoryBlobStore(0));
+        String owner = "https://sqs.us-east-1.amazonaws.com/123/Local_Manager_Queue";
+        ManagerJournal journal = open(dir.resolve("first"), "bucket", owner);
+        state.add(new String[] {"J", "job-1"});
+        journal.append("J", "job-1");
+
+        // actions wait for the upload of a snapshot that covers them
+        AtomicBoolean ran = new AtomicBoolean();
+        journal.whenDurable(() -> ran.set(true));
+        assertFalse(ran.get());
+        journal.checkpoint();
+        assertTrue(ran.get());
+        journal.close();
+
+        // a manager on a fresh instance, for the same queue and for another one
+        List<String[]> recovered = replay(dir.resolve("second"), "bucket", owner);
+        assertEquals(1, recovered.size());
+        assertArrayEquals(new String[] {"J", "job-1"}, recovered.get(0));
+        assertTrue(replay(dir.resolve("third"), "bucket", owner + "-other").isEmpty());
+    }
+
+    // A sharded task: its merged result is journaled, and the parts may go only once that R
+    // record is safe. A crash before the snapshot upload must find them still there.
+    @Test
+    void shardPartsOutliveACrashBeforeTheirResultIsDurable() throws Exception {
+        InMemoryBlobStore blobs = new InMemoryBlobStore(0);
+        Transports.install(new InMemoryMessageQueue(0), blobs);
+        String[] parts = new String[2];
+        for (int i = 0; i < parts.length; i++) {
+            blobs.put("bucket", "results/part" + i, ("part " + i + "\n").getBytes(StandardCharsets.UTF_8), null);
+            parts[i] = "s3://bucket/results/part" + i;
+        }
+        state.add(new String[] {"S", "job-1", "7", "part0,part1"});
+        ManagerJournal journal = open(dir.resolve("first"), "bucket", "lmq");
+
+        // as completeShard does: merge, journal R, delete the parts once R is durable
+        String merged = ResultMerger.concat("bucket", "results/merged", parts);
+        journal.append("R", "job-1", "7", "true", merged);
+        journal.whenDurable(() -> ResultMerger.deleteParts("bucket", parts));
+        journal.close(); // crash: the snapshot with R never reached S3
+
+        List<String[]> recovered = replay(dir.resolve("second"), "bucket", "lmq");
+        assertEquals(1, recovered.size());
+        assertEquals("S", recovered.get(0)[0]); // the shard is still open after recovery...
+        // ...and merging it again still finds every part
+        String again = ResultMerger.concat("bucket", "results/merged-again", parts);
+        try (InputStream in = blobs.open("bucket", again.substring("s3://bucket/".length()))) {
+            assertEquals("part 0\npart 1\n", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        // the restarted manager journals R, and its next snapshot lets the parts go
+        state.clear();
+        ManagerJournal restarted = open(dir.resolve("second"), "bucket", "lmq");
+        state.add(new String[] {"R", "job-1", "7", "true", again});
+        restarted.whenDurable(() -> ResultMerger.deleteParts("bucket", parts));
+        assertEquals(7, blobs.size("bucket", "results/part1"));
+        restarted.checkpoint();
+        assertEquals(-1, blobs.size("bucket", "results/part0"));
+        assertEquals(-1, blobs.size("bucket", "results/part1"));
+        restarted.close();
+    }
+}
@@ -0,0 +1,72 @@
+package manager;
+
+import common.BlobStore;
+import common.InMemoryBlobStore;
+import common.InMemoryMessageQueue;
+import common.Transports;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ResultMergerTest {
+
+    private BlobStore blobs;
+
+    @BeforeEach
+    void installInMemoryBlobs() {
+        blobs = new InMemoryBlobStore(0);
+        Transports.install(new InMemoryMessageQueue(0), blobs);
+    }
+
+    private String put(String key, String content) {
+        blobs.put("bucket", key, content.getBytes(StandardCharsets.UTF_8), "text/plain");
+        return "s3://bucket/" + key;
+    }
+
+    private String read(String key) throws Exception {
+        try (InputStream in = blobs.open("bucket", key)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void concatenatesPartsInOrderAndKeepsThem() throws Exception {
+        String[] parts = {
+                put("results/p0.txt", "first part\n"),
+                put("results/p1.txt", ""),
+                put("results/p2.txt", "third part – ünïcode\n"),
+        };
+
+        String merged = ResultMerger.concat("bucket", "results/merged.txt", parts);
+
+        assertEquals("s3://bucket/results/merged.txt", merged);
+        assertEquals("first part\nthird part – ünïcode\n", read("results/merged.txt"));
+        // a crash before the result is journaled merges them again
+        assertEquals(11, blobs.size("bucket", "results/p0.txt"));
+    }
+
+    @Test
+    void deletePartsRemovesOnlyThisBucketsParts() {
+        put("results/p0.txt", "first part\n");
+        blobs.put("other", "results/p1.txt", new byte[] {1}, null);
+
+        ResultMerger.deleteParts("bucket", new String[] {"s3://bucket/results/p0.txt", "s3://other/results/p1.txt"});
+
+        assertEquals(-1, blobs.size("bucket", "results/p0.txt"));
+        assertEquals(1, blobs.size("other", "results/p1.txt"));
+    }
+
+    @Test
+    void missingPartFailsBeforeWriting() {
+        String[] parts = {put("results/p0.txt", "first part\n"), "s3://bucket/results/gone.txt"};
+
+        assertThrows(IllegalStateException.class, () -> ResultMerger.concat("bucket", "results/merged.txt", parts));
+        assertEquals(-1, blobs.size("bucket", "results/merged.txt"));
+        assertEquals(11, blobs.size("bucket", "results/p0.txt"));
+    }
+}
@@ -0,0 +1,67 @@
+package manager;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TaskBitmapTest {
+
+    @Test
+    void setReportsOnlyTheFirstFlip() {
+        TaskBitmap bits = new TaskBitmap();
+        assertFalse(bits.get(5));
+        assertTrue(bits.set(5));
+        assertFalse(bits.set(5));
+        assertTrue(bits.get(5));
+        assertFalse(bits.get(4));
+        assertFalse(bits.get(6));
+    }
+
+    @Test
+    void coversPageAndWordBoundaries() {
+        TaskBitmap bits = new TaskBitmap();
+        int[] indexes = {0, 63, 64, 65535, 65536, 1_000_000, Integer.MAX_VALUE};
+        for (int i : indexes) {
+            assertTrue(bits.set(i), "set " + i);
+        }
+        for (int i : indexes) {
+            assertTrue(bits.get(i), "get " + i);
+        }
+        // same bit position in a neighbouring word or page stays clear
+        assertFalse(bits.get(127));
+        assertFalse(bits.get(65536 + 64));
+        assertFalse(bits.get(Integer.MAX_VALUE - 64));
+    }
+
+    @Test
+    void concurrentSettersClaimEachIndexOnce() throws Exception {
+        TaskBitmap bits = new TaskBitmap();
+        AtomicInteger claimed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            Future<?>[] runs = new Future<?>[8];
+            for (int t = 0; t < runs.length; t++) {
+                runs[t] = pool.submit(() -> {
+                    for (int i = 0; i < 200_000; i++) {
+                        if (bits.set(i))
+                            claimed.incrementAndGet();
+                    }
+                });
+            }
+            for (Future<?> run : runs) {
+                run.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(200_000, claimed.get());
+    }
+}
@@ -0,0 +1,96 @@
+package worker;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpDownloaderTest {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private HttpServer server;
+    private byte[] document;
+    private final AtomicLong served = new AtomicLong();
+
+    @BeforeEach
+    void startServer() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int p = 0; p < 200; p++) {
+            // one paragraph far longer than the range slack, so a shard must fetch more
+            int sentences = p == 120 ? 4000 : 400;
+            for (int s = 0; s < sentences; s++) {
+                text.append("Paragraph ").append(p).append(" has sentence ").append(s).append(". ");
+            }
+            text.append("\n\n");
+        }
+        document = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/doc.txt", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            int from = 0;
+            int to = document.length; // exclusive
+            int status = 200;
+            if (range != null) {
+                Matcher m = RANGE.matcher(range);
+                if (m.matches()) {
+                    from = Integer.parseInt(m.group(1));
+                    if (!m.group(2).isEmpty())
+                        to = Math.min(document.length, Integer.parseInt(m.group(2)) + 1);
+                    status = 206;
+                }
+            }
+            if (from >= document.length) {
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            if (status == 206)
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + from + "-" + (to - 1) + "/" + document.length);
+            exchange.sendResponseHeaders(status, to - from);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(document, from, to - from);
+            }
+            served.addAndGet(to - from);
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void shardsFetchBoundedRangesAndTogetherRebuildTheDocument() throws Exception {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/doc.txt?t=" + System.nanoTime();
+        int shards = 8;
+        long size = document.length;
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int i = 0; i < shards; i++) {
+            long start = size * i / shards;
+            long end = size * (i + 1) / shards;
+            try (InputStream in = HttpDownloader.openRange(url, start, end)) {
+                in.transferTo(joined);
+            }
+        }
+
+        assertEquals(new String(document, StandardCharsets.UTF_8), joined.toString(StandardCharsets.UTF_8));
+        // an open-ended range per shard would serve about shards/2 documents
+        assertTrue(served.get() < 2L * size, "served " + served.get() + " bytes of a " + size + " byte document");
+    }
+}
@@ -0,0 +1,108 @@
+package worker;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderedWindowTest {
+
+    @Test
+    void resultsKeepSentenceOrderWhenSentencesFinishOutOfOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Integer> written = new ArrayList<>();
+        List<Integer> finished = Collections.synchronizedList(new ArrayList<>());
+        try (OrderedWindow<Integer> window = new OrderedWindow<>(pool, 4, written::add)) {
+            for (int i = 0; i < 40; i++) {
+                int sentence = i;
+                // within each window of four the last sentence is the fastest
+                window.submit(() -> {
+                    Thread.sleep(5L * (4 - sentence % 4));
+                    finished.add(sentence);
+                    return sentence;
+                });
+            }
+            window.drain();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, written);
+        assertFalse(finished.equals(expected), "sentences should have finished out of order");
+    }
+
+    @Test
+    void aLaterSentenceWaitsForTheOneBeforeIt() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        CountDownLatch firstMayFinish = new CountDownLatch(1);
+        CountDownLatch secondDone = new CountDownLatch(1);
+        List<String> written = new ArrayList<>();
+        try (OrderedWindow<String> window = new OrderedWindow<>(pool, 8, written::add)) {
+            window.submit(() -> {
+                firstMayFinish.await();
+                return "first";
+            });
+            window.submit(() -> {
+                secondDone.countDown();
+                return "second";
+            });
+            assertTrue(secondDone.await(10, TimeUnit.SECONDS));
+            assertTrue(written.isEmpty());
+            firstMayFinish.countDown();
+            window.drain();
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(List.of("first", "second"), written);
+    }
+
+    @Test
+    void noMoreThanTheWindowIsInFlight() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        AtomicInteger submitted = new AtomicInteger();
+        AtomicInteger maxAhead = new AtomicInteger();
+        List<Integer> written = new ArrayList<>();
+        try (OrderedWindow<Integer> window = new OrderedWindow<>(pool, 3, written::add)) {
+            for (int i = 0; i < 30; i++) {
+                int sentence = i;
+                submitted.incrementAndGet();
+                window.submit(() -> sentence);
+                maxAhead.accumulateAndGet(submitted.get() - written.size(), Math::max);
+            }
+            window.drain();
+        } finally {
+            pool.shutdownNow();
+        }
+        assertTrue(maxAhead.get() < 3, "in flight after submit: " + maxAhead.get());
+        assertEquals(30, written.size());
+    }
+
+    @Test
+    void aFailedSentenceFailsTheDocument() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try (OrderedWindow<Integer> window = new OrderedWindow<>(pool, 2, r -> { })) {
+            window.submit(() -> {
+                throw new IllegalStateException("boom");
+            });
+            assertThrows(IOException.class, window::drain);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}